@@ -0,0 +1,35 @@
+package acceptable.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Entry point of the benchmarks jar, which accepts the same command line
+ * as JMH itself, but always attaches the GC profiler, so that allocation
+ * rates are reported alongside throughput and latency. For example:</p>
+ *
+ * <pre>
+ * mvn -pl benchmarks -am package -DskipTests
+ * java -jar benchmarks/target/benchmarks.jar TickBenchmark -p capacity=65536
+ * </pre>
+ */
+public final class Benchmarks {
+    private Benchmarks() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() ||
+                options.shouldListWithParams() || options.shouldListProfilers() ||
+                options.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .parent(options)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package acceptable.benchmarks;
+
+/**
+ * <p>A minimal, single-threaded model of Netty's HashedWheelTimer, used as a
+ * baseline: a wheel of buckets, each a doubly linked list of timeout objects,
+ * where each timeout counts down the remaining rotations of the wheel before
+ * it may expire. Unlike the stopwatches, every timeout is an allocated object,
+ * and long timeouts are revisited on every rotation.</p>
+ */
+final class HashedWheelTimer {
+    final class Timeout {
+        final long deadline;
+        long remainingRounds;
+        Timeout prev, next;
+        int bucket = -1;
+
+        Timeout(long deadline) {
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            if (bucket >= 0) unlink(this);
+        }
+    }
+
+    private final long tickDuration;
+    private final Timeout[] heads;
+    private final int mask;
+    private long tick;
+
+    HashedWheelTimer(long tickDuration, int wheelSize) {
+        this.tickDuration = tickDuration;
+        this.heads = new Timeout[Integer.highestOneBit(wheelSize - 1) << 1];
+        this.mask = heads.length - 1;
+    }
+
+    Timeout newTimeout(long deadline) {
+        Timeout timeout = new Timeout(deadline);
+        long calculated = deadline / tickDuration;
+        timeout.remainingRounds = (calculated - tick) / heads.length;
+        int bucket = (int) (Math.max(calculated, tick) & mask);
+        timeout.bucket = bucket;
+        timeout.next = heads[bucket];
+        if (heads[bucket] != null) heads[bucket].prev = timeout;
+        heads[bucket] = timeout;
+        return timeout;
+    }
+
+    /**
+     * Process the bucket of the current tick, as of a given time, and advance
+     * to the next tick.
+     * @return the number of expired timeouts
+     */
+    int expire(long now) {
+        int expired = 0;
+        Timeout timeout = heads[(int) (tick & mask)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                unlink(timeout);
+                ++expired;
+            } else if (timeout.remainingRounds > 0) {
+                --timeout.remainingRounds;
+            }
+            timeout = next;
+        }
+        ++tick;
+        return expired;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev == null) {
+            heads[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+    }
+}
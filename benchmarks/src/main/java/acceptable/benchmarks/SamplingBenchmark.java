@@ -0,0 +1,78 @@
+package acceptable.benchmarks;
+
+import acceptable.probability.IntProbabilityDistribution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the cost of drawing a single sample from an
+ * {@link IntProbabilityDistribution} with random integer weights, comparing
+ * the exact two-draw path with the single-draw fixed point path, and with
+ * exact draws into an array.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+
+    @State(Scope.Thread)
+    public static class Distribution {
+        @Param({"16", "1024"})
+        public int size;
+
+        IntProbabilityDistribution distribution;
+        final Random random = new Random(0);
+        final int[] out = new int[1024];
+
+        @Setup
+        public void setup() {
+            SplittableRandom weights = new SplittableRandom(0);
+            int[] w = new int[size];
+            for (int i = 0; i < size; ++i) w[i] = 1 + weights.nextInt(1000);
+            distribution = new IntProbabilityDistribution(w);
+        }
+    }
+
+    @Benchmark
+    public int next(Distribution d) {
+        return d.distribution.next(d.random);
+    }
+
+    @Benchmark
+    public int nextFast(Distribution d) {
+        return d.distribution.nextFast(d.random);
+    }
+
+    @Benchmark
+    public int nextThreadLocal(Distribution d) {
+        return d.distribution.next();
+    }
+
+    @Benchmark
+    public int nextFastThreadLocal(Distribution d) {
+        return d.distribution.nextFast();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public int[] nextBulk(Distribution d) {
+        d.distribution.next(d.random, d.out, 0, d.out.length);
+        return d.out;
+    }
+}
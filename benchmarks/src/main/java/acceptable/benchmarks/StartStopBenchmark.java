@@ -0,0 +1,168 @@
+package acceptable.benchmarks;
+
+import acceptable.stopwatch.ConcurrentNanotimeStopwatch;
+import acceptable.stopwatch.HierarchicalStopwatch;
+import acceptable.stopwatch.NanotimeStopwatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the cost of starting a timer and then stopping it before it
+ * expires, in real time, against a background population of long-lived timers
+ * which fills half of each implementation's capacity, spread so that every
+ * other slot of a stopwatch is occupied. This is the hot path of a request
+ * deadline which is almost always met.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartStopBenchmark {
+    static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    static final long RESOLUTION = TimeUnit.MILLISECONDS.toNanos(1);
+    static final int MASK = (1 << 12) - 1;
+
+    @State(Scope.Thread)
+    public abstract static class Population {
+        @Param({"1024", "65536"})
+        public int capacity;
+
+        final long[] durations = new long[MASK + 1];
+        int next = 0;
+
+        @Setup
+        public void generate() {
+            Random random = new Random(0);
+            for (int i = 0; i <= MASK; ++i) {
+                durations[i] = (1 + random.nextInt(100)) * RESOLUTION;
+            }
+        }
+
+        long duration() {
+            return durations[next++ & MASK];
+        }
+    }
+
+    public static class Wheel extends Population {
+        NanotimeStopwatch stopwatch;
+
+        @Setup
+        public void setup() {
+            stopwatch = new NanotimeStopwatch(RESOLUTION, capacity);
+            for (int i = 0; i < capacity / 2; ++i) stopwatch.start(HOUR + 2 * i * RESOLUTION);
+        }
+    }
+
+    public static class Hierarchical extends Population {
+        HierarchicalStopwatch stopwatch;
+
+        @Setup
+        public void setup() {
+            stopwatch = new HierarchicalStopwatch(RESOLUTION, capacity);
+            for (int i = 0; i < capacity / 2; ++i) stopwatch.start(HOUR + 2 * i * RESOLUTION);
+        }
+    }
+
+    public static class Concurrent extends Population {
+        ConcurrentNanotimeStopwatch stopwatch;
+
+        @Setup
+        public void setup() {
+            stopwatch = new ConcurrentNanotimeStopwatch(RESOLUTION, capacity);
+            for (int i = 0; i < capacity / 2; ++i) stopwatch.start(HOUR + 2 * i * RESOLUTION);
+        }
+    }
+
+    public static class Queue extends Population {
+        static final class Timer implements Delayed {
+            final long stopTime;
+
+            Timer(long stopTime) {
+                this.stopTime = stopTime;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(stopTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed o) {
+                return Long.compare(stopTime, ((Timer) o).stopTime);
+            }
+        }
+
+        final DelayQueue<Timer> queue = new DelayQueue<>();
+
+        @Setup
+        public void setup() {
+            long now = System.nanoTime();
+            for (int i = 0; i < capacity / 2; ++i) queue.offer(new Timer(now + HOUR + 2 * i * RESOLUTION));
+        }
+    }
+
+    public static class Executor extends Population {
+        ScheduledThreadPoolExecutor executor;
+
+        @Setup
+        public void setup() {
+            executor = new ScheduledThreadPoolExecutor(1);
+            executor.setRemoveOnCancelPolicy(true);
+            for (int i = 0; i < capacity / 2; ++i) {
+                executor.schedule(() -> {}, HOUR + 2 * i * RESOLUTION, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public long wheel(Wheel population) {
+        return population.stopwatch.stop(population.stopwatch.start(population.duration()));
+    }
+
+    @Benchmark
+    public long hierarchical(Hierarchical population) {
+        return population.stopwatch.stop(population.stopwatch.start(population.duration()));
+    }
+
+    @Benchmark
+    public long concurrent(Concurrent population) {
+        return population.stopwatch.stop(population.stopwatch.start(population.duration()));
+    }
+
+    @Benchmark
+    public boolean delayQueue(Queue population) {
+        Queue.Timer timer = new Queue.Timer(System.nanoTime() + population.duration());
+        population.queue.offer(timer);
+        return population.queue.remove(timer);
+    }
+
+    @Benchmark
+    public boolean scheduledThreadPoolExecutor(Executor population) {
+        ScheduledFuture<?> future = population.executor.schedule(
+                () -> {}, population.duration(), TimeUnit.NANOSECONDS);
+        return future.cancel(false);
+    }
+}
@@ -0,0 +1,190 @@
+package acceptable.benchmarks;
+
+import acceptable.stopwatch.NanotimeStopwatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Simulates an event loop driving a population of timers in simulated
+ * time. Each invocation is one tick: the clock advances by the tick interval,
+ * the timers which completed during the previous tick are stopped, a fixed
+ * number of new timers arrive, and then expired timers are collected. A
+ * configurable fraction of the arriving timers are left to expire, and the
+ * rest complete after one tick.</p>
+ *
+ * <p>Durations are drawn either from a short mix, of 2 to 50 ticks, or from a
+ * mixed workload in which one timer in ten instead lasts 1000 to 5000 ticks,
+ * like an idle timeout among request deadlines.</p>
+ *
+ * <p>Since each slot of a {@link NanotimeStopwatch} holds a single timer, and
+ * its cursor advances by one slot per resolution, it can expire at most one
+ * timer per resolution; a stopwatch whose resolution equals the tick interval
+ * falls ever further behind once more than one timer expires per tick. The
+ * stopwatch is therefore given a resolution of {@link #SLOTS_PER_TICK} slots
+ * per tick interval.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickBenchmark {
+    static final int ARRIVALS = 64;
+    static final int SLOTS_PER_TICK = 256;
+    static final int MASK = (1 << 16) - 1;
+
+    @State(Scope.Thread)
+    public abstract static class Workload {
+        @Param({"65536", "1048576"})
+        public int capacity;
+
+        @Param({"100000", "1000000"})
+        public long tickInterval;
+
+        @Param({"short", "mixed"})
+        public String mix;
+
+        @Param({"0.1", "0.9"})
+        public double expiryRatio;
+
+        final long[] durations = new long[MASK + 1];
+        final boolean[] expires = new boolean[MASK + 1];
+        int arrival = 0;
+        long now = 0;
+
+        @Setup
+        public void generate() {
+            Random random = new Random(0);
+            for (int i = 0; i <= MASK; ++i) {
+                long ticks = "mixed".equals(mix) && random.nextInt(10) == 0
+                        ? 1000 + random.nextInt(4001)
+                        : 2 + random.nextInt(49);
+                durations[i] = ticks * tickInterval;
+                expires[i] = random.nextDouble() < expiryRatio;
+            }
+        }
+    }
+
+    public static class Wheel extends Workload {
+        NanotimeStopwatch stopwatch;
+        int[] expired;
+        final int[] completing = new int[ARRIVALS];
+        int completed = 0;
+
+        @Setup
+        public void setup() {
+            stopwatch = new NanotimeStopwatch(
+                    tickInterval / SLOTS_PER_TICK, capacity, () -> now);
+            expired = new int[capacity];
+        }
+
+        int advance() {
+            now += tickInterval;
+            for (int i = 0; i < completed; ++i) {
+                stopwatch.stop(completing[i]);
+            }
+            completed = 0;
+            for (int i = 0; i < ARRIVALS; ++i) {
+                int j = arrival++ & MASK;
+                int index = stopwatch.start(durations[j]);
+                if (!expires[j]) completing[completed++] = index;
+            }
+            return stopwatch.tick(expired);
+        }
+    }
+
+    public static class Queue extends Workload {
+        final class Timer implements Delayed {
+            final long stopTime;
+
+            Timer(long stopTime) {
+                this.stopTime = stopTime;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(stopTime - now, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed o) {
+                return Long.compare(stopTime, ((Timer) o).stopTime);
+            }
+        }
+
+        final DelayQueue<Timer> queue = new DelayQueue<>();
+        final Timer[] completing = new Timer[ARRIVALS];
+        int completed = 0;
+
+        int advance() {
+            now += tickInterval;
+            for (int i = 0; i < completed; ++i) {
+                queue.remove(completing[i]);
+            }
+            completed = 0;
+            for (int i = 0; i < ARRIVALS; ++i) {
+                int j = arrival++ & MASK;
+                Timer timer = new Timer(now + durations[j]);
+                queue.offer(timer);
+                if (!expires[j]) completing[completed++] = timer;
+            }
+            int expired = 0;
+            while (queue.poll() != null) ++expired;
+            return expired;
+        }
+    }
+
+    public static class HashedWheel extends Workload {
+        HashedWheelTimer timer;
+        final HashedWheelTimer.Timeout[] completing = new HashedWheelTimer.Timeout[ARRIVALS];
+        int completed = 0;
+
+        @Setup
+        public void setup() {
+            timer = new HashedWheelTimer(tickInterval, 512);
+        }
+
+        int advance() {
+            now += tickInterval;
+            for (int i = 0; i < completed; ++i) {
+                completing[i].cancel();
+            }
+            completed = 0;
+            for (int i = 0; i < ARRIVALS; ++i) {
+                int j = arrival++ & MASK;
+                HashedWheelTimer.Timeout timeout = timer.newTimeout(now + durations[j]);
+                if (!expires[j]) completing[completed++] = timeout;
+            }
+            return timer.expire(now);
+        }
+    }
+
+    @Benchmark
+    public int wheel(Wheel workload) {
+        return workload.advance();
+    }
+
+    @Benchmark
+    public int delayQueue(Queue workload) {
+        return workload.advance();
+    }
+
+    @Benchmark
+    public int hashedWheel(HashedWheel workload) {
+        return workload.advance();
+    }
+}
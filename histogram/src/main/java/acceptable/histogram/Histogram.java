@@ -1,5 +1,10 @@
 package acceptable.histogram;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+
 /**
  * <p>An approximate histogram in constant space, based on Ben-Haim &amp; Yom-Tov,
  * "A Streaming Parallel Decision Tree Algorithm". The histogram is represented
@@ -16,12 +21,27 @@ package acceptable.histogram;
  * recently merged bin, such that for "well behaved" input (such as a normal
  * distribution), the number of shift operations required by an update should be
  * much less than the total number of bins on average.</p>
+ *
+ * <p>Once the histogram is full, the pair of bins with the closest centroids
+ * is found using a tree of deltas between adjacent centroids, kept alongside
+ * the bins. This tree is refreshed only where bins were shifted, so the cost
+ * of an update is proportional to the number of shifts, plus a logarithmic
+ * search for the closest pair.</p>
  */
 public final class Histogram {
     private final int maxBins;
     private final double[] centroids;
     private final long[] counts;
     private int bins = 0, gap = 0;
+    private MinTree deltas;
+    private Workspace workspace;
+
+    private long updates = 0, hits = 0, merges = 0, shifts = 0, maxShifts = 0, scans = 0;
+    private long batches = 0, histogramMerges = 0, compactions = 0;
+
+    private boolean indexed = false;
+    private double[] indexCentroids, indexTotals;
+    private long[] indexCounts;
 
     private long count = 0;
     private double
@@ -43,13 +63,34 @@ public final class Histogram {
      * @param observation the new data point to be approximated in the histogram
      */
     public void update(double observation) {
-        count += 1;
+        update(observation, 1);
+    }
+
+    /**
+     * Update this histogram with a new observation that occurred some number
+     * of times, such as a pre-aggregated count from an upstream source. This
+     * is equivalent to, but much faster than, calling
+     * {@link #update(double)} that number of times: the observation is
+     * inserted as a single bin carrying the whole weight.
+     * @param observation the new data point to be approximated in the histogram
+     * @param weight the number of times the data point was observed, which
+     *               must be positive
+     * @throws IllegalArgumentException if the weight isn't positive
+     */
+    public void update(double observation, long weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        indexed = false;
+        count += weight;
+        updates += 1;
         if (observation < min) min = observation;
         if (observation > max) max = observation;
 
         // shift the insertion gap left or right to maintain ordering. if we
         // happen to find a bin whose centroid is equal to the observation,
         // just update its count in place.
+        int start = gap;
         while (true) {
             // look at the bin to the left of the gap ...
             if (gap != 0) {
@@ -60,7 +101,10 @@ public final class Histogram {
                     gap--;
                     continue;
                 } else if (centroids[gap - 1] == observation) {
-                    counts[gap - 1]++;
+                    counts[gap - 1] += weight;
+                    hits += 1;
+                    countShifts(start, gap);
+                    refreshDeltas(start, gap);
                     return;
                 }
             }
@@ -74,7 +118,10 @@ public final class Histogram {
                     gap++;
                     continue;
                 } else if (centroids[gap + 1] == observation) {
-                    counts[gap + 1]++;
+                    counts[gap + 1] += weight;
+                    hits += 1;
+                    countShifts(start, gap);
+                    refreshDeltas(start, gap);
                     return;
                 }
             }
@@ -84,51 +131,665 @@ public final class Histogram {
         }
 
         // insert the observation in a new bin at the gap
+        countShifts(start, gap);
         centroids[gap] = observation;
-        counts[gap] = 1;
+        counts[gap] = weight;
 
         // if the histogram isn't yet full, just stick the gap back at the end.
         if (bins != maxBins) {
             bins += 1;
             gap = bins;
+            if (bins == maxBins) {
+                buildDeltas();
+            }
             return;
         }
 
         // if the histogram is full, find the adjacent bins with the closest
         // centroids and merge them. the choice whether to leave the gap on the
         // left or right of the new merged bin is arbitrary.
+        refreshDeltas(start, gap);
+        merges += 1;
+        gap = closestPair();
+        centroids[gap + 1] =
+                (centroids[gap] * counts[gap] +
+                 centroids[gap + 1] * counts[gap + 1]) /
+                (counts[gap] + counts[gap + 1]);
+        counts[gap + 1] = counts[gap] + counts[gap + 1];
+        if (gap + 1 != maxBins) {
+            refreshDeltas(gap + 1, gap + 1);
+        }
+    }
+
+    private void countShifts(int from, int to) {
+        long shifted = from < to ? to - from : from - to;
+        shifts += shifted;
+        if (shifted > maxShifts) maxShifts = shifted;
+    }
+
+    /*
+     * Once this histogram is full, the pair of bins with the closest centroids
+     * is found using a tree of deltas between adjacent centroids. Rather than
+     * holding one delta per leaf, which would double the work of shifting the
+     * gap, each leaf of the tree holds the minimum delta within a block of
+     * DELTA_BLOCK adjacent pairs of bins, computed directly from the
+     * centroids. The invariant is that every leaf is correct, except for the
+     * leaves whose blocks contain a pair adjacent to the gap; these are always
+     * refreshed along with the bins shifted by the next update.
+     */
+
+    private static final int DELTA_BLOCK = 16;
+
+    /**
+     * Build the tree of deltas between adjacent centroids, once this histogram
+     * becomes full.
+     */
+    private void buildDeltas() {
+        if (deltas == null) {
+            deltas = new MinTree((maxBins + DELTA_BLOCK - 1) / DELTA_BLOCK);
+        }
+        refreshDeltas(0, maxBins);
+    }
+
+    /**
+     * Recompute the leaves of the tree of deltas that are affected by moving
+     * the gap between two indices. Since the gap is only ever shifted one bin
+     * at a time, the total cost is proportional to the number of shifts.
+     * @param from index of the gap before shifting
+     * @param to index of the gap after shifting
+     */
+    private void refreshDeltas(int from, int to) {
+        if (bins != maxBins) {
+            return;
+        }
+        int lo = Math.max(Math.min(from, to) - 1, 0) / DELTA_BLOCK;
+        int hi = Math.min(Math.max(from, to), maxBins - 1) / DELTA_BLOCK;
+        for (int block = lo; block <= hi; ++block) {
+            int end = Math.min(block * DELTA_BLOCK + DELTA_BLOCK, maxBins);
+            scans += end - block * DELTA_BLOCK;
+            double minDelta = Double.POSITIVE_INFINITY;
+            for (int bin = block * DELTA_BLOCK; bin < end; ++bin) {
+                double delta = centroids[bin + 1] - centroids[bin];
+                if (delta < minDelta) minDelta = delta;
+            }
+            deltas.set(block, minDelta);
+        }
+        deltas.refresh(lo, hi);
+    }
+
+    /**
+     * Find the adjacent pair of bins with the closest centroids, when this
+     * histogram is full and has no gap. Ties are broken in favor of the
+     * leftmost pair.
+     * @return the index of the left-hand bin of the closest pair
+     */
+    private int closestPair() {
+        int block = deltas.argmin();
+        int end = Math.min(block * DELTA_BLOCK + DELTA_BLOCK, maxBins);
+        int closest = block * DELTA_BLOCK;
+        scans += end - closest;
         double minDelta = Double.POSITIVE_INFINITY;
-        for (int bin = 0; bin < bins; ++bin) {
+        for (int bin = closest; bin < end; ++bin) {
             double delta = centroids[bin + 1] - centroids[bin];
             if (delta < minDelta) {
-                gap = bin;
+                closest = bin;
                 minDelta = delta;
             }
         }
-        centroids[gap + 1] =
-                (centroids[gap] * counts[gap] +
-                 centroids[gap + 1] * counts[gap + 1]) /
-                (counts[gap] + counts[gap + 1]);
-        counts[gap + 1] = counts[gap] + counts[gap + 1];
+        return closest;
+    }
+
+    /**
+     * Update this histogram with a batch of new observations. The batch is
+     * sorted and merged with the existing bins in a single ordered pass, and
+     * then the pairs of bins with the closest centroids are merged until no
+     * more than the maximum number of bins remain. This is much faster than
+     * calling {@link #update(double)} for each observation, since the insertion
+     * gap doesn't need to be shifted back and forth across the histogram.
+     * @param observations an array containing the new data points
+     * @param offset index of the first new data point in the array
+     * @param length number of new data points in the array
+     */
+    public void update(double[] observations, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        Workspace workspace = workspace();
+        workspace.ensureBatchCapacity(length);
+        System.arraycopy(observations, offset, workspace.batchCentroids, 0, length);
+        Arrays.fill(workspace.batchCounts, 0, length, 1);
+        Arrays.sort(workspace.batchCentroids, 0, length);
+        absorbBatch(workspace, length);
+    }
+
+    /**
+     * Update this histogram with a batch of new observations, each of which
+     * occurred some number of times.
+     * @param observations an array containing the new data points
+     * @param weights an array containing the number of times each data point
+     *                was observed, at the same indices as the data points,
+     *                all of which must be positive
+     * @param offset index of the first new data point in the arrays
+     * @param length number of new data points in the arrays
+     * @throws IllegalArgumentException if any weight isn't positive
+     * @see #update(double, long)
+     * @see #update(double[], int, int)
+     */
+    public void update(
+            double[] observations, long[] weights, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("weight must be positive: " + weights[i]);
+            }
+        }
+        if (length == 0) {
+            return;
+        }
+        Workspace workspace = workspace();
+        workspace.ensureBatchCapacity(length);
+        System.arraycopy(observations, offset, workspace.batchCentroids, 0, length);
+        System.arraycopy(weights, offset, workspace.batchCounts, 0, length);
+        workspace.sortBatch(length);
+        absorbBatch(workspace, length);
+    }
+
+    /**
+     * Collapse a sorted batch of bins in the workspace, combining bins with
+     * equal centroids, and then absorb them into this histogram.
+     */
+    private void absorbBatch(Workspace workspace, int length) {
+        double[] batchCentroids = workspace.batchCentroids;
+        long[] batchCounts = workspace.batchCounts;
+        int batchBins = 0;
+        long batchCount = 0;
+        for (int i = 0; i < length; ++i) {
+            batchCount += batchCounts[i];
+            if (batchBins != 0 && batchCentroids[batchBins - 1] == batchCentroids[i]) {
+                batchCounts[batchBins - 1] += batchCounts[i];
+            } else {
+                batchCentroids[batchBins] = batchCentroids[i];
+                batchCounts[batchBins] = batchCounts[i];
+                batchBins += 1;
+            }
+        }
+
+        count += batchCount;
+        batches += 1;
+        if (batchCentroids[0] < min) min = batchCentroids[0];
+        if (batchCentroids[batchBins - 1] > max) max = batchCentroids[batchBins - 1];
+        absorb(batchCentroids, batchCounts, batchBins, -1);
+    }
+
+    /**
+     * Merge another histogram into this one, as described in section 2.1 of
+     * Ben-Haim &amp; Yom-Tov. The bins of both histograms are combined in a
+     * single ordered pass, and then the pairs of bins with the closest
+     * centroids are merged until no more than the maximum number of bins
+     * remain. The other histogram is not modified.
+     * @param other the histogram whose observations are to be merged into this
+     *              one
+     * @return this histogram
+     */
+    public Histogram merge(Histogram other) {
+        absorb(other.centroids, other.counts, other.bins + 1, other.gap);
+        histogramMerges += 1;
+        count += other.count;
+        if (other.min < min) min = other.min;
+        if (other.max > max) max = other.max;
+        return this;
+    }
+
+    /**
+     * Merge any number of histograms into a new histogram with a maximum
+     * number of bins. None of the given histograms are modified.
+     * @param maxBins maximum number of bins in the resulting histogram
+     * @param histograms the histograms to be merged
+     * @return a new histogram summarizing the observations of all the given
+     * histograms
+     * @see #merge(Histogram)
+     */
+    public static Histogram merge(int maxBins, Histogram... histograms) {
+        Histogram result = new Histogram(maxBins);
+        for (Histogram histogram : histograms) {
+            result.merge(histogram);
+        }
+        return result;
+    }
+
+    /**
+     * Construct a histogram from a stream of observations. If the stream is
+     * parallel, each thread builds a partial histogram from its share of the
+     * stream, and the partial histograms are then merged. Observations are
+     * buffered and added to each partial histogram in
+     * {@link #update(double[], int, int) batches}.
+     * <pre>{@code Histogram histogram = Histogram.of(100, Arrays.stream(data).parallel());}</pre>
+     * @param maxBins maximum number of bins in the histogram
+     * @param observations a stream of data points to be approximated
+     * @return a new histogram summarizing the stream of observations
+     */
+    public static Histogram of(int maxBins, DoubleStream observations) {
+        return observations.collect(
+                () -> new Accumulator(maxBins),
+                Accumulator::update,
+                Accumulator::merge).finish();
+    }
+
+    /**
+     * Construct a histogram from an array of observations, in parallel using
+     * the common fork-join pool.
+     * @param maxBins maximum number of bins in the histogram
+     * @param observations an array of data points to be approximated
+     * @return a new histogram summarizing the array of observations
+     * @see #of(int, DoubleStream)
+     */
+    public static Histogram of(int maxBins, double... observations) {
+        return of(maxBins, Arrays.stream(observations).parallel());
+    }
+
+    /**
+     * Return a collector which constructs a histogram from a stream of boxed
+     * observations.
+     * @param maxBins maximum number of bins in the histogram
+     * @return a collector which constructs a histogram
+     * @see #of(int, DoubleStream)
+     */
+    public static Collector<Double, ?, Histogram> collector(int maxBins) {
+        return Collector.of(
+                () -> new Accumulator(maxBins),
+                Accumulator::update,
+                Accumulator::merge,
+                Accumulator::finish,
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * A partial histogram under construction from a stream, which buffers
+     * observations so that they can be added in batches.
+     */
+    private static final class Accumulator {
+        private final Histogram histogram;
+        private final double[] buffer = new double[4096];
+        private int length = 0;
+
+        Accumulator(int maxBins) {
+            histogram = new Histogram(maxBins);
+        }
+
+        void update(double observation) {
+            if (length == buffer.length) {
+                flush();
+            }
+            buffer[length++] = observation;
+        }
+
+        Accumulator merge(Accumulator other) {
+            histogram.merge(other.finish());
+            return this;
+        }
+
+        Histogram finish() {
+            flush();
+            return histogram;
+        }
+
+        private void flush() {
+            histogram.update(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    /**
+     * Combine the bins of this histogram with an ordered array of other bins,
+     * and then compact them to the maximum number of bins. The other bins
+     * occupy indices <code>[0, end)</code> of their arrays, except for the
+     * index of their gap, if any. Note that this does not update the count,
+     * min or max of this histogram.
+     */
+    private void absorb(
+            double[] otherCentroids, long[] otherCounts, int end, int otherGap) {
+        indexed = false;
+        Workspace workspace = workspace();
+        workspace.ensureCapacity(bins + end);
+        double[] mergedCentroids = workspace.centroids;
+        long[] mergedCounts = workspace.counts;
+
+        // combine both sets of bins in order, skipping over each insertion
+        // gap. bins with equal centroids are combined into one.
+        int length = 0, lhs = 0, rhs = 0;
+        while (true) {
+            if (lhs == gap) lhs += 1;
+            if (rhs == otherGap) rhs += 1;
+
+            double centroid;
+            long binCount;
+            if (lhs > bins && rhs >= end) {
+                break;
+            } else if (rhs >= end ||
+                    lhs <= bins && centroids[lhs] < otherCentroids[rhs]) {
+                centroid = centroids[lhs];
+                binCount = counts[lhs++];
+            } else {
+                centroid = otherCentroids[rhs];
+                binCount = otherCounts[rhs++];
+            }
+
+            if (length != 0 && mergedCentroids[length - 1] == centroid) {
+                mergedCounts[length - 1] += binCount;
+            } else {
+                mergedCentroids[length] = centroid;
+                mergedCounts[length] = binCount;
+                length += 1;
+            }
+        }
+        int compacted = compact(workspace, length, maxBins);
+        compactions += length - compacted;
+        length = compacted;
+
+        // copy the merged bins back, leaving the insertion gap at the end.
+        System.arraycopy(mergedCentroids, 0, centroids, 0, length);
+        System.arraycopy(mergedCounts, 0, counts, 0, length);
+        bins = length;
+        gap = length;
+        if (bins == maxBins) {
+            buildDeltas();
+        }
+    }
+
+    /**
+     * Reduce an ordered array of bins to a maximum number of bins, by
+     * repeatedly merging the adjacent pair of bins with the closest centroids.
+     * Bins are linked in a list as they are merged, and a tree of deltas is
+     * used to find the closest pair, so this takes <em>O(n log n)</em> time.
+     * @return the number of bins remaining
+     */
+    private static int compact(Workspace workspace, int length, int maxBins) {
+        if (length <= maxBins) {
+            return length;
+        }
+        double[] centroids = workspace.centroids;
+        long[] counts = workspace.counts;
+        int[] prev = workspace.prev, next = workspace.next;
+        MinTree deltas = workspace.deltas;
+        deltas.clear();
+
+        // link the bins, and build a tree of deltas between each bin and the
+        // next one.
+        for (int bin = 0; bin < length; ++bin) {
+            prev[bin] = bin - 1;
+            next[bin] = bin + 1;
+            if (bin != length - 1) {
+                deltas.set(bin, centroids[bin + 1] - centroids[bin]);
+            }
+        }
+        deltas.refresh(0, length - 2);
+
+        // merge each closest pair into the right-hand bin, and unlink the
+        // left-hand bin.
+        for (int remaining = length; remaining > maxBins; --remaining) {
+            int lhs = deltas.argmin(), rhs = next[lhs];
+            centroids[rhs] =
+                    (centroids[lhs] * counts[lhs] +
+                     centroids[rhs] * counts[rhs]) /
+                    (counts[lhs] + counts[rhs]);
+            counts[rhs] = counts[lhs] + counts[rhs];
+
+            deltas.set(lhs, Double.POSITIVE_INFINITY);
+            deltas.refresh(lhs, lhs);
+            if (prev[lhs] >= 0) {
+                next[prev[lhs]] = rhs;
+                deltas.set(prev[lhs], centroids[rhs] - centroids[prev[lhs]]);
+                deltas.refresh(prev[lhs], prev[lhs]);
+            }
+            prev[rhs] = prev[lhs];
+            next[lhs] = -1;
+            if (next[rhs] < length) {
+                deltas.set(rhs, centroids[next[rhs]] - centroids[rhs]);
+                deltas.refresh(rhs, rhs);
+            }
+        }
+
+        // squeeze out the unlinked bins.
+        int remaining = 0;
+        for (int bin = 0; bin < length; ++bin) {
+            if (next[bin] >= 0) {
+                centroids[remaining] = centroids[bin];
+                counts[remaining] = counts[bin];
+                remaining += 1;
+            }
+        }
+        return remaining;
+    }
+
+    private Workspace workspace() {
+        if (workspace == null) {
+            workspace = new Workspace();
+        }
+        return workspace;
     }
 
     /**
-     * Query for approximate values at specified quantiles. Note that quantiles
-     * must be listed in order from 0 to 1. For example:
+     * Working memory for merges and batch updates. This is allocated on first
+     * use and then retained, so that merging into the same histogram
+     * repeatedly, or updating it with batches of similar size, doesn't
+     * allocate.
+     */
+    private static final class Workspace {
+        double[] centroids = new double[0], batchCentroids = new double[0];
+        long[] counts = new long[0], batchCounts = new long[0];
+        int[] prev = new int[0], next = new int[0];
+        MinTree deltas = new MinTree(0);
+
+        void ensureCapacity(int length) {
+            if (centroids.length < length) {
+                centroids = new double[length];
+                counts = new long[length];
+                prev = new int[length];
+                next = new int[length];
+                deltas = new MinTree(length);
+            }
+        }
+
+        void ensureBatchCapacity(int length) {
+            if (batchCentroids.length < length) {
+                batchCentroids = new double[length];
+                batchCounts = new long[length];
+            }
+        }
+
+        /**
+         * Sort the first <code>length</code> batch centroids, along with their
+         * counts, using a bottom-up merge sort with the other arrays as
+         * temporary storage.
+         */
+        void sortBatch(int length) {
+            ensureCapacity(length);
+            double[] fromCentroids = batchCentroids, toCentroids = centroids;
+            long[] fromCounts = batchCounts, toCounts = counts;
+            for (int width = 1; width < length; width *= 2) {
+                for (int lo = 0; lo < length; lo += 2 * width) {
+                    int mid = Math.min(lo + width, length);
+                    int hi = Math.min(lo + 2 * width, length);
+                    for (int i = lo, lhs = lo, rhs = mid; i < hi; ++i) {
+                        if (rhs == hi || lhs < mid && fromCentroids[lhs] <= fromCentroids[rhs]) {
+                            toCentroids[i] = fromCentroids[lhs];
+                            toCounts[i] = fromCounts[lhs++];
+                        } else {
+                            toCentroids[i] = fromCentroids[rhs];
+                            toCounts[i] = fromCounts[rhs++];
+                        }
+                    }
+                }
+                double[] centroidsSwap = fromCentroids;
+                fromCentroids = toCentroids;
+                toCentroids = centroidsSwap;
+                long[] countsSwap = fromCounts;
+                fromCounts = toCounts;
+                toCounts = countsSwap;
+            }
+            if (fromCentroids != batchCentroids) {
+                System.arraycopy(fromCentroids, 0, batchCentroids, 0, length);
+                System.arraycopy(fromCounts, 0, batchCounts, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Return the total number of observations in this histogram.
+     * @return the total number of observations in this histogram
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Return a snapshot of statistics about the work done by this histogram's
+     * updates and merges since it was constructed, which can be used to judge
+     * whether the insertion gap is effective for a given input, and to size
+     * the maximum number of bins. Statistics are maintained with a few
+     * increments per update, and are not affected by {@link #reset()}.
+     * @return a snapshot of statistics about this histogram's updates
+     */
+    public Stats stats() {
+        return new Stats(
+                updates, hits, merges, shifts, maxShifts, scans,
+                batches, histogramMerges, compactions);
+    }
+
+    /**
+     * Statistics about the work done by a histogram's single-observation
+     * {@link #update(double, long) updates}, its
+     * {@link #update(double[], int, int) batch updates}, and
+     * {@link #merge(Histogram) merges} of other histograms into it. Histograms
+     * built from streams, such as by {@link #of(int, DoubleStream)}, are built
+     * by batch updates and merges alone.
+     */
+    public static final class Stats {
+        /**
+         * The number of single-observation updates.
+         */
+        public final long updates;
+
+        /**
+         * The number of updates whose observation was equal to an existing
+         * centroid, and so only required updating that bin's count in place.
+         */
+        public final long hits;
+
+        /**
+         * The number of updates which required merging the closest pair of
+         * bins, because the histogram was full.
+         */
+        public final long merges;
+
+        /**
+         * The total number of bins shifted across the insertion gap.
+         */
+        public final long shifts;
+
+        /**
+         * The largest number of bins shifted by a single update.
+         */
+        public final long maxShifts;
+
+        /**
+         * The total number of adjacent pairs of bins scanned to find and
+         * maintain the closest pair, in blocks of up to 16 pairs.
+         */
+        public final long scans;
+
+        /**
+         * The number of batch updates.
+         */
+        public final long batches;
+
+        /**
+         * The number of other histograms merged into this one.
+         */
+        public final long histogramMerges;
+
+        /**
+         * The number of pairs of bins merged to compact the bins of batch
+         * updates and merged histograms to the maximum number of bins.
+         */
+        public final long compactions;
+
+        Stats(
+                long updates, long hits, long merges, long shifts, long maxShifts, long scans,
+                long batches, long histogramMerges, long compactions) {
+            this.updates = updates;
+            this.hits = hits;
+            this.merges = merges;
+            this.shifts = shifts;
+            this.maxShifts = maxShifts;
+            this.scans = scans;
+            this.batches = batches;
+            this.histogramMerges = histogramMerges;
+            this.compactions = compactions;
+        }
+
+        /**
+         * Return the average number of bins shifted per update, which should
+         * be much less than the maximum number of bins for "well behaved"
+         * input.
+         * @return the average number of bins shifted per update
+         */
+        public double averageShifts() {
+            return updates == 0 ? 0 : (double) shifts / updates;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats(updates=" + updates +
+                    ", hits=" + hits +
+                    ", merges=" + merges +
+                    ", shifts=" + shifts +
+                    ", maxShifts=" + maxShifts +
+                    ", scans=" + scans +
+                    ", batches=" + batches +
+                    ", histogramMerges=" + histogramMerges +
+                    ", compactions=" + compactions + ")";
+        }
+    }
+
+    /**
+     * Remove all observations from this histogram, leaving it empty without
+     * releasing any memory.
+     */
+    public void reset() {
+        indexed = false;
+        bins = 0;
+        gap = 0;
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Query for approximate values at specified quantiles. For example:
      * <pre>{@code double[] result = histogram.query(0.00, 0.25, 0.50, 0.75, 1.00);}</pre>
-     * @param quantiles an ordered array of quantiles
+     * @param quantiles an array of quantiles, in any order
      * @return an array containing the approximate values at the specified
      * quantiles
      */
     public double[] query(double... quantiles) {
         double[] result = new double[quantiles.length];
-        int lhs = -1;
-        double lhsTotal = 0, rhsTotal = 0;
-
-        double lhsCentroid = Double.NaN, rhsCentroid = Double.NaN;
-        long lhsCount = 0, rhsCount = 0;
+        query(quantiles, result);
+        return result;
+    }
 
-        // for each quantile being queried ...
+    /**
+     * Query for approximate values at specified quantiles, without allocating
+     * an array for the result. Each quantile is found by a binary search over
+     * a cumulative index of the bins, which is built by the first query after
+     * an update and then reused, so repeated queries between updates take
+     * logarithmic rather than linear time.
+     * @param quantiles an array of quantiles, in any order
+     * @param result an array at least as long as the array of quantiles, into
+     *               which the approximate values at the specified quantiles
+     *               are written
+     */
+    public void query(double[] quantiles, double[] result) {
+        index();
         for (int q = 0; q < quantiles.length; ++q) {
             double quantile = quantiles[q];
             if (quantile <= 0) {
@@ -139,61 +800,331 @@ public final class Histogram {
                 result[q] = max;
                 continue;
             }
+            if (count == 0) {
+                result[q] = Double.NaN;
+                continue;
+            }
             double needle = count * quantile;
 
-            // find the bin containing the desired quantile
-            while (rhsTotal < needle) {
-                int rhs = lhs + 1;
-                if (rhs == gap) rhs += 1;
-
-                // determine the left-hand side endpoint ...
-                if (lhs < 0) {
-                    lhsCentroid = min;
-                    lhsCount = 0;
+            // find the first endpoint whose cumulative total reaches the
+            // desired quantile; the quantile lies between it and the
+            // preceding endpoint.
+            int lo = 1, hi = bins + 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexTotals[mid] < needle) {
+                    lo = mid + 1;
                 } else {
-                    lhsCentroid = centroids[lhs];
-                    lhsCount = counts[lhs];
+                    hi = mid;
                 }
+            }
 
-                // determine the right-hand side endpoint ...
-                if (rhs > bins) {
-                    rhsCentroid = max;
-                    rhsCount = 0;
-                } else {
-                    rhsCentroid = centroids[rhs];
-                    rhsCount = counts[rhs];
-                }
+            // approximate the value at the requested quantile ...
+            result[q] = interpolate(
+                    needle,
+                    indexCentroids[lo - 1], indexCounts[lo - 1], indexTotals[lo - 1],
+                    indexCentroids[lo], indexCounts[lo], indexTotals[lo]);
+        }
+    }
+
+    /**
+     * Return the approximate number of observations less than or equal to a
+     * given value. This is the <em>sum</em> procedure of Ben-Haim &amp;
+     * Yom-Tov, and is the inverse of {@link #query(double...)}.
+     * @param value the value whose rank is to be approximated
+     * @return the approximate number of observations less than or equal to
+     * the given value
+     */
+    public double rank(double value) {
+        if (value < min) {
+            return 0;
+        }
+        if (value >= max) {
+            return count;
+        }
+        index();
+
+        // find the last endpoint whose centroid is less than or equal to the
+        // value; the value lies between it and the following endpoint.
+        int lo = 0, hi = bins;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (indexCentroids[mid] <= value) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        // integrate the trapezoid from the left-hand endpoint to the value.
+        double lhsCentroid = indexCentroids[lo], rhsCentroid = indexCentroids[lo + 1];
+        long lhsCount = indexCounts[lo], rhsCount = indexCounts[lo + 1];
+        double z = rhsCentroid == lhsCentroid
+                ? 0
+                : (value - lhsCentroid) / (rhsCentroid - lhsCentroid);
+        double valueCount = lhsCount + (rhsCount - lhsCount) * z;
+        return indexTotals[lo] + 0.5d * (lhsCount + valueCount) * z;
+    }
+
+    /**
+     * Return the approximate fraction of observations less than or equal to a
+     * given value.
+     * @param value the value whose cumulative probability is to be
+     *              approximated
+     * @return the approximate fraction of observations less than or equal to
+     * the given value, from 0 to 1
+     * @see #rank(double)
+     */
+    public double cdf(double value) {
+        return count == 0 ? Double.NaN : rank(value) / count;
+    }
 
-                // determine the area of this bin ...
-                lhsTotal = rhsTotal;
-                rhsTotal += 0.5d * (lhsCount + rhsCount);
+    /**
+     * Build the cumulative index used by queries, unless it is already up to
+     * date. The index consists of the bins in order, without the gap, between
+     * two endpoints at the min and max with counts of zero, and the cumulative
+     * total of the trapezoids up to each of them.
+     */
+    private void index() {
+        if (indexed) {
+            return;
+        }
+        if (indexCentroids == null) {
+            indexCentroids = new double[maxBins + 2];
+            indexCounts = new long[maxBins + 2];
+            indexTotals = new double[maxBins + 2];
+        }
+        indexCentroids[0] = min;
+        indexCounts[0] = 0;
+        indexTotals[0] = 0;
+        int endpoint = 1;
+        for (int bin = 0; bin <= bins; ++bin) {
+            if (bin == gap) continue;
+            indexCentroids[endpoint] = centroids[bin];
+            indexCounts[endpoint] = counts[bin];
+            indexTotals[endpoint] = indexTotals[endpoint - 1] +
+                    0.5d * (indexCounts[endpoint - 1] + counts[bin]);
+            endpoint += 1;
+        }
+        indexCentroids[endpoint] = max;
+        indexCounts[endpoint] = 0;
+        indexTotals[endpoint] = indexTotals[endpoint - 1] +
+                0.5d * indexCounts[endpoint - 1];
+        indexed = true;
+    }
 
-                // update lhs for the next time through the loop. note that this
-                // variable shouldn't be used outside the loop, only the
-                // centroids and counts!
-                lhs = rhs;
+    /**
+     * Approximate the value at a given position within the trapezoid between
+     * two adjacent centroids, as described in section 2.1 of Ben-Haim &amp;
+     * Yom-Tov.
+     * @param needle the position, in number of observations from the minimum
+     * @param lhsCentroid the left-hand centroid
+     * @param lhsCount the count of the left-hand bin
+     * @param lhsTotal the position of the left-hand centroid
+     * @param rhsCentroid the right-hand centroid
+     * @param rhsCount the count of the right-hand bin
+     * @param rhsTotal the position of the right-hand centroid
+     * @return the approximate value at the given position
+     */
+    static double interpolate(
+            double needle,
+            double lhsCentroid, long lhsCount, double lhsTotal,
+            double rhsCentroid, long rhsCount, double rhsTotal) {
+        double a = rhsCount - lhsCount;
+        double z;
+        if (a == 0) {
+            double b = rhsTotal - lhsTotal;
+            if (b == 0) {
+                // don't interpolate
+                z = 0;
+            } else {
+                // interpolate between centroids using boring math
+                z = (needle - lhsTotal) / b;
             }
+        } else {
+            // interpolate between centroids using fancy math
+            double b = 2 * lhsCount;
+            double c = 2 * (lhsTotal - needle);
+            z = (-b + Math.sqrt(b * b - 4 * a * c)) / (2 * a);
+        }
+        return lhsCentroid + (rhsCentroid - lhsCentroid) * z;
+    }
 
-            // approximate the value at the requested quantile ...
-            double a = rhsCount - lhsCount;
-            double z;
-            if (a == 0) {
-                double b = rhsTotal - lhsTotal;
-                if (b == 0) {
-                    // don't interpolate
-                    z = 0;
-                } else {
-                    // interpolate between centroids using boring math
-                    z = (needle - lhsTotal) / b;
-                }
+    /*
+     * Binary encoding: a flags byte, the maximum number of bins, the count,
+     * min and max, the number of bins, and then each bin's centroid and count
+     * in order. In the compressed encoding, counts are written as unsigned
+     * varints, and each centroid after the first is written as a zigzag varint
+     * of the difference between its IEEE 754 bits and those of the previous
+     * centroid, which is small for nearby centroids.
+     */
+
+    private static final byte COMPRESSED = 1;
+
+    /**
+     * The largest maximum number of bins accepted by {@link #read(ByteBuffer)},
+     * which bounds the memory allocated for an untrusted encoding.
+     */
+    private static final int MAX_READ_BINS = 1 << 24;
+
+    /**
+     * Return the number of bytes required to {@link #write(ByteBuffer, boolean)
+     * write} this histogram.
+     * @param compressed whether to use the compressed encoding
+     * @return the number of bytes required to encode this histogram
+     */
+    public int encodedSize(boolean compressed) {
+        int size = 1 + 4 + 8 + 8 + 8 + 4;
+        if (!compressed) {
+            return size + bins * (8 + 8);
+        }
+        long previous = 0;
+        for (int bin = 0; bin <= bins; ++bin) {
+            if (bin == gap) continue;
+            long bits = Double.doubleToRawLongBits(centroids[bin]);
+            size += varintSize(zigzag(bits - previous)) + varintSize(counts[bin]);
+            previous = bits;
+        }
+        return size;
+    }
+
+    /**
+     * Write this histogram to a buffer, in a compact binary encoding which
+     * preserves all of its bins. The buffer's position is advanced past the
+     * encoded histogram.
+     * @param buffer the buffer to write to
+     * @param compressed whether to use the compressed encoding, which is
+     *                   smaller but slower to write and read
+     * @throws java.nio.BufferOverflowException if the buffer has fewer than
+     * {@link #encodedSize(boolean)} bytes remaining
+     * @see #read(ByteBuffer)
+     */
+    public void write(ByteBuffer buffer, boolean compressed) {
+        buffer.put(compressed ? COMPRESSED : 0);
+        buffer.putInt(maxBins);
+        buffer.putLong(count);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        buffer.putInt(bins);
+        long previous = 0;
+        for (int bin = 0; bin <= bins; ++bin) {
+            if (bin == gap) continue;
+            if (compressed) {
+                long bits = Double.doubleToRawLongBits(centroids[bin]);
+                putVarint(buffer, zigzag(bits - previous));
+                putVarint(buffer, counts[bin]);
+                previous = bits;
             } else {
-                // interpolate between centroids using fancy math
-                double b = 2 * lhsCount;
-                double c = 2 * (lhsTotal - needle);
-                z = (-b + Math.sqrt(b * b - 4 * a * c)) / (2 * a);
+                buffer.putDouble(centroids[bin]);
+                buffer.putLong(counts[bin]);
             }
-            result[q] = lhsCentroid + (rhsCentroid - lhsCentroid) * z;
         }
-        return result;
+    }
+
+    /**
+     * Read a histogram from a buffer, which was previously
+     * {@link #write(ByteBuffer, boolean) written}. The buffer's position is
+     * advanced past the encoded histogram.
+     * @param buffer the buffer to read from
+     * @return a new histogram with the same bins as the one written
+     * @throws java.nio.BufferUnderflowException if the buffer doesn't contain a
+     * complete histogram
+     * @throws IllegalArgumentException if the buffer doesn't contain a valid
+     * histogram: one with between 1 and 2<sup>24</sup> maximum bins, no more
+     * bins than that, centroids in ascending order, positive counts, and a
+     * total count equal to the sum of the counts of its bins
+     */
+    public static Histogram read(ByteBuffer buffer) {
+        // validate the header before allocating anything, and check that the
+        // buffer could hold the bins, each of which takes at least two bytes
+        // compressed or sixteen uncompressed.
+        boolean compressed = (buffer.get() & COMPRESSED) != 0;
+        int maxBins = buffer.getInt();
+        if (maxBins < 1 || maxBins > MAX_READ_BINS) {
+            throw new IllegalArgumentException("invalid maximum number of bins: " + maxBins);
+        }
+        long count = buffer.getLong();
+        double min = buffer.getDouble(), max = buffer.getDouble();
+        int bins = buffer.getInt();
+        if (bins < 0 || bins > maxBins ||
+                (long) bins * (compressed ? 2 : 16) > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid number of bins: " + bins);
+        }
+
+        Histogram histogram = new Histogram(maxBins);
+        histogram.count = count;
+        histogram.min = min;
+        histogram.max = max;
+        long previous = 0, total = 0;
+        double previousCentroid = Double.NEGATIVE_INFINITY;
+        for (int bin = 0; bin < bins; ++bin) {
+            double centroid;
+            long binCount;
+            if (compressed) {
+                previous += unzigzag(getVarint(buffer));
+                centroid = Double.longBitsToDouble(previous);
+                binCount = getVarint(buffer);
+            } else {
+                centroid = buffer.getDouble();
+                binCount = buffer.getLong();
+            }
+            if (!(centroid >= previousCentroid)) {
+                throw new IllegalArgumentException("centroids out of order: " + centroid);
+            }
+            if (binCount < 1) {
+                throw new IllegalArgumentException("invalid bin count: " + binCount);
+            }
+            if ((total += binCount) < 0) {
+                throw new IllegalArgumentException("total bin count overflows");
+            }
+            histogram.centroids[bin] = previousCentroid = centroid;
+            histogram.counts[bin] = binCount;
+        }
+        if (total != count) {
+            throw new IllegalArgumentException(
+                    "count doesn't match the bins' total: " + count + " != " + total);
+        }
+        histogram.bins = bins;
+        histogram.gap = bins;
+        if (bins == histogram.maxBins) {
+            histogram.buildDeltas();
+        }
+        return histogram;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size += 1;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
     }
 }
@@ -0,0 +1,161 @@
+package acceptable.histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * <p>A fixed number of approximate histograms, identified by slot, whose bins
+ * live directly in a memory-mapped file. Updates and queries operate on the
+ * mapped bytes in place, so histograms survive restarts of the process
+ * without being serialized or deserialized: reopening the file makes every
+ * histogram immediately available. The operating system decides when
+ * modified pages are written back to the file, unless {@link #force()} is
+ * called.</p>
+ *
+ * <p>Each histogram behaves like a {@link Histogram} with the file's maximum
+ * number of bins, except that the closest pair of bins is found by a linear
+ * scan. The file consists of a small header followed by one fixed-size region
+ * per slot, and must be smaller than 2 GiB.</p>
+ *
+ * <p><strong>Note that this implementation is not synchronized.</strong></p>
+ */
+public final class HistogramFile implements Closeable {
+    private static final int MAGIC = 0x41484631; // "AHF1"
+    private static final int HEADER = 12;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final HistogramLayout layout;
+    private final int slots;
+
+    private HistogramFile(
+            FileChannel channel, MappedByteBuffer buffer,
+            HistogramLayout layout, int slots) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.layout = layout;
+        this.slots = slots;
+    }
+
+    /**
+     * Open a histogram file, creating it if it doesn't exist. A new file is
+     * initialized with empty histograms; an existing file must have been
+     * created with the same maximum number of bins and number of slots.
+     * @param path the path of the file
+     * @param maxBins maximum number of bins in each histogram
+     * @param slots number of histograms in the file
+     * @return the opened histogram file
+     * @throws IOException if the file can't be opened or mapped, or if an
+     * existing file has a different layout
+     * @throws IllegalArgumentException if the file would be 2 GiB or larger
+     */
+    public static HistogramFile open(Path path, int maxBins, int slots)
+            throws IOException {
+        HistogramLayout layout = new HistogramLayout(maxBins, false);
+        long size = HEADER + (long) layout.size * slots;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("histogram file too large: " + size);
+        }
+
+        FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, maxBins);
+                buffer.putInt(8, slots);
+                for (int slot = 0; slot < slots; ++slot) {
+                    layout.reset(buffer, HEADER + slot * layout.size);
+                }
+            } else if (buffer.getInt(0) != MAGIC ||
+                    buffer.getInt(4) != maxBins ||
+                    buffer.getInt(8) != slots) {
+                throw new IOException("incompatible histogram file: " + path);
+            }
+            return new HistogramFile(channel, buffer, layout, slots);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the number of histograms in this file.
+     * @return the number of histograms in this file
+     */
+    public int slots() {
+        return slots;
+    }
+
+    /**
+     * Update a histogram with a new observation.
+     * @param slot the index of the histogram
+     * @param observation the new data point to be approximated
+     * @see Histogram#update(double)
+     */
+    public void update(int slot, double observation) {
+        layout.update(buffer, base(slot), observation, 1);
+    }
+
+    /**
+     * Query a histogram for approximate values at specified quantiles.
+     * @param slot the index of the histogram
+     * @param quantiles an array of quantiles, in any order
+     * @return an array containing the approximate values at the specified
+     * quantiles
+     * @see Histogram#query(double...)
+     */
+    public double[] query(int slot, double... quantiles) {
+        return layout.query(buffer, base(slot), quantiles);
+    }
+
+    /**
+     * Return the total number of observations in a histogram.
+     * @param slot the index of the histogram
+     * @return the total number of observations in the histogram
+     */
+    public long count(int slot) {
+        return layout.count(buffer, base(slot));
+    }
+
+    /**
+     * Remove all observations from a histogram.
+     * @param slot the index of the histogram
+     */
+    public void reset(int slot) {
+        layout.reset(buffer, base(slot));
+    }
+
+    /**
+     * Force any changes to the histograms to be written to the file.
+     * @see MappedByteBuffer#force()
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Close the file. Note that the mapping itself remains valid until it is
+     * garbage collected, but this histogram file must not be used again.
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int base(int slot) {
+        if (slot < 0 || slot >= slots) {
+            throw new IndexOutOfBoundsException("slot: " + slot);
+        }
+        return HEADER + slot * layout.size;
+    }
+}
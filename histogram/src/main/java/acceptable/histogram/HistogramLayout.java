@@ -0,0 +1,277 @@
+package acceptable.histogram;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>The layout of a {@link Histogram} stored in a fixed-size region of a
+ * {@link ByteBuffer} rather than in Java arrays, together with the histogram
+ * algorithms over that layout. A region consists of a header containing the
+ * count, min, max, number of bins and gap index, followed by the centroids
+ * and then the counts of <em>maxBins + 1</em> bins. A newly allocated region
+ * must be {@link #reset(ByteBuffer, int) reset} before use.</p>
+ *
+ * <p>In the compact layout, centroids are stored as floats and the counts of
+ * individual bins as unsigned ints, halving the size of a region. Observations
+ * are rounded to the nearest float, and a bin's count saturates at
+ * <em>2<sup>32</sup> - 1</em>. Observations which don't fit in a saturated
+ * bin are dropped from the total count as well, so that the total is always
+ * the sum of the counts of the bins.</p>
+ *
+ * <p>Updates use the same insertion gap as {@link Histogram}, but find the
+ * closest pair of bins by a linear scan, since a tree of deltas would have to
+ * be stored in the region as well, or rebuilt whenever a region is first
+ * touched.</p>
+ */
+final class HistogramLayout {
+    private static final int
+            COUNT = 0,
+            MIN = 8,
+            MAX = 16,
+            BINS = 24,
+            GAP = 28,
+            CENTROIDS = 32;
+
+    /**
+     * The maximum number of bins in each histogram.
+     */
+    final int maxBins;
+
+    /**
+     * The size, in bytes, of each histogram's region.
+     */
+    final int size;
+
+    /**
+     * Whether centroids are stored as floats and counts as unsigned ints.
+     */
+    final boolean compact;
+
+    private final int counts;
+
+    HistogramLayout(int maxBins, boolean compact) {
+        this.maxBins = maxBins;
+        this.compact = compact;
+        int width = compact ? 4 : 8;
+        this.counts = CENTROIDS + width * (maxBins + 1);
+        this.size = counts + width * (maxBins + 1);
+    }
+
+    private double centroid(ByteBuffer buffer, int base, int bin) {
+        return compact
+                ? buffer.getFloat(base + CENTROIDS + 4 * bin)
+                : buffer.getDouble(base + CENTROIDS + 8 * bin);
+    }
+
+    private void centroid(ByteBuffer buffer, int base, int bin, double centroid) {
+        if (compact) {
+            buffer.putFloat(base + CENTROIDS + 4 * bin, (float) centroid);
+        } else {
+            buffer.putDouble(base + CENTROIDS + 8 * bin, centroid);
+        }
+    }
+
+    private long count(ByteBuffer buffer, int base, int bin) {
+        return compact
+                ? buffer.getInt(base + counts + 4 * bin) & 0xffffffffL
+                : buffer.getLong(base + counts + 8 * bin);
+    }
+
+    private void count(ByteBuffer buffer, int base, int bin, long count) {
+        if (compact) {
+            if (count > 0xffffffffL) {
+                // saturate, and drop the excess from the total count.
+                long total = buffer.getLong(base + COUNT);
+                buffer.putLong(base + COUNT, total - (count - 0xffffffffL));
+                count = 0xffffffffL;
+            }
+            buffer.putInt(base + counts + 4 * bin, (int) count);
+        } else {
+            buffer.putLong(base + counts + 8 * bin, count);
+        }
+    }
+
+    /**
+     * Return the total number of observations in a histogram.
+     * @param buffer the buffer containing the histogram
+     * @param base the offset of the histogram's region in the buffer
+     * @return the total number of observations in the histogram
+     * @see Histogram#count()
+     */
+    long count(ByteBuffer buffer, int base) {
+        return buffer.getLong(base + COUNT);
+    }
+
+    /**
+     * Remove all observations from a histogram.
+     * @param buffer the buffer containing the histogram
+     * @param base the offset of the histogram's region in the buffer
+     * @see Histogram#reset()
+     */
+    void reset(ByteBuffer buffer, int base) {
+        buffer.putLong(base + COUNT, 0);
+        buffer.putDouble(base + MIN, Double.POSITIVE_INFINITY);
+        buffer.putDouble(base + MAX, Double.NEGATIVE_INFINITY);
+        buffer.putInt(base + BINS, 0);
+        buffer.putInt(base + GAP, 0);
+    }
+
+    /**
+     * Update a histogram with a new observation that occurred some number of
+     * times.
+     * @param buffer the buffer containing the histogram
+     * @param base the offset of the histogram's region in the buffer
+     * @param observation the new data point to be approximated
+     * @param weight the number of times the data point was observed, which
+     *               must be positive
+     * @see Histogram#update(double, long)
+     */
+    void update(ByteBuffer buffer, int base, double observation, long weight) {
+        if (compact) {
+            // round first, so that equal centroids are found as such
+            observation = (float) observation;
+        }
+        buffer.putLong(base + COUNT, buffer.getLong(base + COUNT) + weight);
+        if (observation < buffer.getDouble(base + MIN)) buffer.putDouble(base + MIN, observation);
+        if (observation > buffer.getDouble(base + MAX)) buffer.putDouble(base + MAX, observation);
+
+        int bins = buffer.getInt(base + BINS), gap = buffer.getInt(base + GAP);
+
+        // shift the insertion gap left or right to maintain ordering, or
+        // update the count of an equal bin in place, exactly as in Histogram.
+        while (true) {
+            if (gap != 0) {
+                double lhs = centroid(buffer, base, gap - 1);
+                if (lhs > observation) {
+                    centroid(buffer, base, gap, lhs);
+                    count(buffer, base, gap, count(buffer, base, gap - 1));
+                    gap--;
+                    continue;
+                } else if (lhs == observation) {
+                    count(buffer, base, gap - 1, count(buffer, base, gap - 1) + weight);
+                    buffer.putInt(base + GAP, gap);
+                    return;
+                }
+            }
+            if (gap != bins) {
+                double rhs = centroid(buffer, base, gap + 1);
+                if (rhs < observation) {
+                    centroid(buffer, base, gap, rhs);
+                    count(buffer, base, gap, count(buffer, base, gap + 1));
+                    gap++;
+                    continue;
+                } else if (rhs == observation) {
+                    count(buffer, base, gap + 1, count(buffer, base, gap + 1) + weight);
+                    buffer.putInt(base + GAP, gap);
+                    return;
+                }
+            }
+            break;
+        }
+
+        // insert the observation in a new bin at the gap
+        centroid(buffer, base, gap, observation);
+        count(buffer, base, gap, weight);
+
+        // if the histogram isn't yet full, just stick the gap back at the end.
+        if (bins != maxBins) {
+            buffer.putInt(base + BINS, bins + 1);
+            buffer.putInt(base + GAP, bins + 1);
+            return;
+        }
+
+        // otherwise, merge the adjacent bins with the closest centroids.
+        double minDelta = Double.POSITIVE_INFINITY;
+        double previous = centroid(buffer, base, 0);
+        for (int bin = 0; bin < bins; ++bin) {
+            double next = centroid(buffer, base, bin + 1);
+            double delta = next - previous;
+            if (delta < minDelta) {
+                gap = bin;
+                minDelta = delta;
+            }
+            previous = next;
+        }
+        double lhsCentroid = centroid(buffer, base, gap);
+        double rhsCentroid = centroid(buffer, base, gap + 1);
+        long lhsCount = count(buffer, base, gap);
+        long rhsCount = count(buffer, base, gap + 1);
+        centroid(buffer, base, gap + 1,
+                (lhsCentroid * lhsCount + rhsCentroid * rhsCount) /
+                (lhsCount + rhsCount));
+        count(buffer, base, gap + 1, lhsCount + rhsCount);
+        buffer.putInt(base + GAP, gap);
+    }
+
+    /**
+     * Query a histogram for approximate values at specified quantiles. The
+     * bins are walked once for quantiles in ascending order, and the walk
+     * restarts from the first bin at each quantile lower than its predecessor.
+     * @param buffer the buffer containing the histogram
+     * @param base the offset of the histogram's region in the buffer
+     * @param quantiles an array of quantiles, in any order
+     * @return an array containing the approximate values at the specified
+     * quantiles
+     * @see Histogram#query(double...)
+     */
+    double[] query(ByteBuffer buffer, int base, double... quantiles) {
+        long count = buffer.getLong(base + COUNT);
+        double min = buffer.getDouble(base + MIN), max = buffer.getDouble(base + MAX);
+        int bins = buffer.getInt(base + BINS), gap = buffer.getInt(base + GAP);
+
+        double[] result = new double[quantiles.length];
+        int lhs = -1;
+        double lhsTotal = 0, rhsTotal = 0;
+        double lhsCentroid = Double.NaN, rhsCentroid = Double.NaN;
+        long lhsCount = 0, rhsCount = 0;
+        for (int q = 0; q < quantiles.length; ++q) {
+            double quantile = quantiles[q];
+            if (quantile <= 0) {
+                result[q] = min;
+                continue;
+            }
+            if (quantile >= 1) {
+                result[q] = max;
+                continue;
+            }
+            double needle = count * quantile;
+            if (needle <= lhsTotal) {
+                // the quantiles aren't in order, so restart the walk
+                lhs = -1;
+                lhsTotal = rhsTotal = 0;
+            }
+            while (rhsTotal < needle && lhs <= bins) {
+                int rhs = lhs + 1;
+                if (rhs == gap) rhs += 1;
+                if (lhs < 0) {
+                    lhsCentroid = min;
+                    lhsCount = 0;
+                } else {
+                    lhsCentroid = centroid(buffer, base, lhs);
+                    lhsCount = count(buffer, base, lhs);
+                }
+                if (rhs > bins) {
+                    rhsCentroid = max;
+                    rhsCount = 0;
+                } else {
+                    rhsCentroid = centroid(buffer, base, rhs);
+                    rhsCount = count(buffer, base, rhs);
+                }
+                lhsTotal = rhsTotal;
+                rhsTotal += 0.5d * (lhsCount + rhsCount);
+                lhs = rhs;
+            }
+            if (rhsTotal < needle) {
+                // the walk passed the max endpoint, which can only happen if
+                // the total count and the bins disagree; don't read past the
+                // last bin.
+                result[q] = max;
+                continue;
+            }
+            result[q] = Histogram.interpolate(
+                    needle,
+                    lhsCentroid, lhsCount, lhsTotal,
+                    rhsCentroid, rhsCount, rhsTotal);
+        }
+        return result;
+    }
+}
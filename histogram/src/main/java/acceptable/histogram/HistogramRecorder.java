@@ -0,0 +1,157 @@
+package acceptable.histogram;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>A concurrent front-end for {@link Histogram}, which may be updated from
+ * any number of threads without locking. Each updating thread records into
+ * its own pair of histograms, and a {@link WriterReaderPhaser} decides which
+ * of the pair is active. A {@link #snapshot()} flips every thread to its other
+ * histogram, waits for any updates already in progress to finish, and then
+ * merges the inactive histograms into a consolidated one.</p>
+ *
+ * <p>For periodic reporting, {@link #intervalHistogram(Histogram)} instead
+ * returns only the observations recorded since the previous interval, and
+ * takes back the histogram returned by the previous call so that it can be
+ * reused. In this steady state, neither updates nor interval reads
+ * allocate.</p>
+ *
+ * <p>An update costs a thread-local lookup, two atomic increments and a
+ * {@link Histogram#update(double)}; it never waits for a snapshot or for any
+ * other thread. Snapshots are serialized with each other, but not with
+ * updates.</p>
+ *
+ * <p>Each thread that updates a recorder holds two histograms of the recorder's
+ * maximum number of bins for as long as the recorder exists, so recorders are
+ * best suited to long-lived pools of threads.</p>
+ */
+public final class HistogramRecorder {
+    private final int maxBins;
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+    private final Queue<Histogram[]> writers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Histogram[]> writer =
+            ThreadLocal.withInitial(this::register);
+
+    private final Histogram total;
+    private Histogram interval;
+
+    /**
+     * Construct an empty recorder, whose snapshots have a maximum number of
+     * bins.
+     * @param maxBins maximum number of bins in each histogram
+     */
+    public HistogramRecorder(int maxBins) {
+        this.maxBins = maxBins;
+        this.total = new Histogram(maxBins);
+        this.interval = new Histogram(maxBins);
+    }
+
+    private Histogram[] register() {
+        Histogram[] histograms = {new Histogram(maxBins), new Histogram(maxBins)};
+        writers.add(histograms);
+        return histograms;
+    }
+
+    /**
+     * Update this recorder with a new observation. This method may be called
+     * concurrently from any number of threads.
+     * @param observation the new data point to be approximated
+     * @see Histogram#update(double)
+     */
+    public void update(double observation) {
+        Histogram[] histograms = writer.get();
+        long phase = phaser.writerCriticalSectionEnter();
+        try {
+            histograms[phase < 0 ? 1 : 0].update(observation);
+        } finally {
+            phaser.writerCriticalSectionExit(phase);
+        }
+    }
+
+    /**
+     * Update this recorder with a new observation that occurred some number of
+     * times. This method may be called concurrently from any number of
+     * threads.
+     * @param observation the new data point to be approximated
+     * @param weight the number of times the data point was observed, which
+     *               must be positive
+     * @see Histogram#update(double, long)
+     */
+    public void update(double observation, long weight) {
+        Histogram[] histograms = writer.get();
+        long phase = phaser.writerCriticalSectionEnter();
+        try {
+            histograms[phase < 0 ? 1 : 0].update(observation, weight);
+        } finally {
+            phaser.writerCriticalSectionExit(phase);
+        }
+    }
+
+    /**
+     * Update this recorder with a batch of new observations. This method may
+     * be called concurrently from any number of threads.
+     * @param observations an array containing the new data points
+     * @param offset index of the first new data point in the array
+     * @param length number of new data points in the array
+     * @see Histogram#update(double[], int, int)
+     */
+    public void update(double[] observations, int offset, int length) {
+        Histogram[] histograms = writer.get();
+        long phase = phaser.writerCriticalSectionEnter();
+        try {
+            histograms[phase < 0 ? 1 : 0].update(observations, offset, length);
+        } finally {
+            phaser.writerCriticalSectionExit(phase);
+        }
+    }
+
+    /**
+     * Return a new histogram containing every observation recorded so far.
+     * The returned histogram belongs to the caller, and is unaffected by
+     * subsequent updates to this recorder.
+     * @return a new histogram containing every observation recorded so far
+     */
+    public synchronized Histogram snapshot() {
+        drain();
+        return new Histogram(maxBins).merge(total).merge(interval);
+    }
+
+    /**
+     * Return a histogram containing every observation recorded since the
+     * previous call to this method, or since this recorder was constructed.
+     * The returned histogram belongs to the caller until it is recycled.
+     * @param recycled a histogram returned by a previous call to this method,
+     *                 which the caller no longer needs and which will be reset
+     *                 and reused for the next interval, or null to allocate a
+     *                 new one
+     * @return a histogram containing every observation recorded since the
+     * previous interval
+     */
+    public synchronized Histogram intervalHistogram(Histogram recycled) {
+        drain();
+        total.merge(interval);
+        Histogram result = interval;
+        if (recycled == null) {
+            recycled = new Histogram(maxBins);
+        } else {
+            recycled.reset();
+        }
+        interval = recycled;
+        return result;
+    }
+
+    /**
+     * Flip the phase, and merge every thread's newly inactive histogram into
+     * the current interval. Must be called while holding this recorder's lock.
+     */
+    private void drain() {
+        int inactive = phaser.flipPhase() ? 1 : 0;
+        for (Histogram[] histograms : writers) {
+            if (histograms[inactive].count() != 0) {
+                interval.merge(histograms[inactive]);
+                histograms[inactive].reset();
+            }
+        }
+    }
+}
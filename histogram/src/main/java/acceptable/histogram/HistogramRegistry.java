@@ -0,0 +1,183 @@
+package acceptable.histogram;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>A growable collection of approximate histograms, identified by series,
+ * for applications that track a very large number of them. Rather than one
+ * {@link Histogram} object and its arrays per series, each series occupies a
+ * fixed-size region of a shared slab, so that hundreds of thousands of series
+ * cost a handful of large allocations, no per-series object headers, and
+ * nothing for the garbage collector to trace. Slabs may be allocated on the
+ * Java heap or off-heap, as direct buffers. The last slab grows by doubling
+ * until it reaches 16 MiB, after which a new slab is added.</p>
+ *
+ * <p>Each series behaves like a {@link Histogram} with the registry's maximum
+ * number of bins, except that the closest pair of bins is found by a linear
+ * scan. In {@link Precision#FLOAT} precision, centroids are stored as floats
+ * and the counts of individual bins as unsigned ints, which halves the size of
+ * each series, at the cost of rounding observations to the nearest float and
+ * saturating each bin's count at <em>2<sup>32</sup> - 1</em>. Observations
+ * which don't fit in a saturated bin are dropped, from the series' total
+ * count as well as from the bin.</p>
+ *
+ * <p><strong>Note that this implementation is not synchronized.</strong></p>
+ */
+public final class HistogramRegistry {
+    /**
+     * The precision in which each series' bins are stored.
+     */
+    public enum Precision {
+        /**
+         * Double centroids and long counts, exactly as in {@link Histogram}.
+         */
+        DOUBLE,
+
+        /**
+         * Float centroids and unsigned int counts, in half the space.
+         */
+        FLOAT
+    }
+
+    private static final int SLAB_BYTES = 1 << 24, MIN_SLAB_SERIES = 16;
+
+    private final HistogramLayout layout;
+    private final boolean direct;
+    private final int seriesPerSlab;
+    private ByteBuffer[] slabs = new ByteBuffer[1];
+    private int series;
+
+    /**
+     * Construct an empty registry, with slabs on the Java heap.
+     * @param maxBins maximum number of bins in each series' histogram
+     * @param precision the precision in which bins are stored
+     */
+    public HistogramRegistry(int maxBins, Precision precision) {
+        this(maxBins, precision, false);
+    }
+
+    /**
+     * Construct an empty registry.
+     * @param maxBins maximum number of bins in each series' histogram
+     * @param precision the precision in which bins are stored
+     * @param direct whether slabs are allocated off-heap, as direct buffers
+     */
+    public HistogramRegistry(int maxBins, Precision precision, boolean direct) {
+        this.layout = new HistogramLayout(maxBins, precision == Precision.FLOAT);
+        this.direct = direct;
+        this.seriesPerSlab = Math.max(1, SLAB_BYTES / layout.size);
+    }
+
+    /**
+     * Add a new, empty series to this registry.
+     * @return the identifier of the new series, which is the number of series
+     * previously added
+     */
+    public int register() {
+        int slab = series / seriesPerSlab;
+        if (slab == slabs.length) {
+            slabs = Arrays.copyOf(slabs, 2 * slabs.length);
+        }
+        int offset = series % seriesPerSlab;
+        if (slabs[slab] == null || slabs[slab].capacity() == offset * layout.size) {
+            int capacity = Math.min(seriesPerSlab, Math.max(MIN_SLAB_SERIES, 2 * offset));
+            ByteBuffer grown = direct
+                    ? ByteBuffer.allocateDirect(capacity * layout.size)
+                    : ByteBuffer.allocate(capacity * layout.size);
+            if (slabs[slab] != null) {
+                grown.put(slabs[slab]).clear();
+            }
+            slabs[slab] = grown;
+        }
+        int id = series++;
+        layout.reset(slabs[slab], base(id));
+        return id;
+    }
+
+    /**
+     * Return the number of series in this registry.
+     * @return the number of series in this registry
+     */
+    public int size() {
+        return series;
+    }
+
+    /**
+     * Return the number of bytes allocated for the slabs of this registry.
+     * @return the number of bytes allocated for the slabs of this registry
+     */
+    public long footprint() {
+        long footprint = 0;
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) footprint += slab.capacity();
+        }
+        return footprint;
+    }
+
+    /**
+     * Update a series with a new observation.
+     * @param id the identifier of the series
+     * @param observation the new data point to be approximated
+     * @see Histogram#update(double)
+     */
+    public void update(int id, double observation) {
+        layout.update(slab(id), base(id), observation, 1);
+    }
+
+    /**
+     * Update a series with a new observation that occurred some number of
+     * times.
+     * @param id the identifier of the series
+     * @param observation the new data point to be approximated
+     * @param weight the number of times the data point was observed, which
+     *               must be positive
+     * @see Histogram#update(double, long)
+     */
+    public void update(int id, double observation, long weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        layout.update(slab(id), base(id), observation, weight);
+    }
+
+    /**
+     * Query a series for approximate values at specified quantiles.
+     * @param id the identifier of the series
+     * @param quantiles an array of quantiles, in any order
+     * @return an array containing the approximate values at the specified
+     * quantiles
+     * @see Histogram#query(double...)
+     */
+    public double[] query(int id, double... quantiles) {
+        return layout.query(slab(id), base(id), quantiles);
+    }
+
+    /**
+     * Return the total number of observations in a series.
+     * @param id the identifier of the series
+     * @return the total number of observations in the series
+     */
+    public long count(int id) {
+        return layout.count(slab(id), base(id));
+    }
+
+    /**
+     * Remove all observations from a series.
+     * @param id the identifier of the series
+     */
+    public void reset(int id) {
+        layout.reset(slab(id), base(id));
+    }
+
+    private ByteBuffer slab(int id) {
+        if (id < 0 || id >= series) {
+            throw new IndexOutOfBoundsException("series: " + id);
+        }
+        return slabs[id / seriesPerSlab];
+    }
+
+    private int base(int id) {
+        return (id % seriesPerSlab) * layout.size;
+    }
+}
@@ -0,0 +1,83 @@
+package acceptable.histogram;
+
+import java.util.Arrays;
+
+/**
+ * A segment tree over a fixed number of doubles, used by {@link Histogram} to
+ * find the adjacent pair of bins with the closest centroids in logarithmic
+ * rather than linear time. The tree is stored implicitly in a single array:
+ * node <em>n</em> has children <em>2n</em> and <em>2n + 1</em>, and each
+ * internal node holds the minimum of its children. Values are set at the
+ * leaves without propagating, and then their ancestors are refreshed all at
+ * once, so that updating a contiguous range of <em>k</em> leaves costs
+ * <em>O(k + log n)</em> rather than <em>O(k log n)</em>.
+ */
+final class MinTree {
+    private final int leaves;
+    private final double[] nodes;
+
+    /**
+     * Construct a tree with a given number of leaves, all initially positive
+     * infinity.
+     * @param size number of leaves
+     */
+    MinTree(int size) {
+        int leaves = 1;
+        while (leaves < size) {
+            leaves <<= 1;
+        }
+        this.leaves = leaves;
+        this.nodes = new double[2 * leaves];
+        Arrays.fill(nodes, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Reset every leaf, and every node, to positive infinity.
+     */
+    void clear() {
+        Arrays.fill(nodes, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Set the value of a leaf, without refreshing its ancestors.
+     * @param index index of the leaf
+     * @param value new value of the leaf
+     * @see #refresh(int, int)
+     */
+    void set(int index, double value) {
+        nodes[leaves + index] = value;
+    }
+
+    /**
+     * Refresh the ancestors of all leaves in the inclusive range
+     * <code>[from, to]</code>.
+     * @param from index of the first leaf whose value was set
+     * @param to index of the last leaf whose value was set
+     */
+    void refresh(int from, int to) {
+        for (from = (leaves + from) >>> 1, to = (leaves + to) >>> 1;
+             from != 0;
+             from >>>= 1, to >>>= 1) {
+            for (int node = from; node <= to; ++node) {
+                // Math.min compiles to a branchless instruction, which
+                // matters here since the comparison is unpredictable.
+                nodes[node] = Math.min(nodes[2 * node], nodes[2 * node + 1]);
+            }
+        }
+    }
+
+    /**
+     * Find the index of the leaf with the minimum value. Ties are broken in
+     * favor of the lowest index.
+     * @return the index of the leaf with the minimum value
+     */
+    int argmin() {
+        int node = 1;
+        while (node < leaves) {
+            node = nodes[2 * node] <= nodes[2 * node + 1]
+                    ? 2 * node
+                    : 2 * node + 1;
+        }
+        return node - leaves;
+    }
+}
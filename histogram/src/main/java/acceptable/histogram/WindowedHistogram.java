@@ -0,0 +1,141 @@
+package acceptable.histogram;
+
+import java.util.function.LongSupplier;
+
+/**
+ * <p>An approximate histogram over a sliding window of time, in constant
+ * space. The window is divided into a fixed number of intervals, each of which
+ * is summarized by its own {@link Histogram}, arranged in a ring. As time
+ * passes, the oldest interval is reset and reused for new observations, and
+ * queries merge the bins of every interval in the window on the fly.</p>
+ *
+ * <p>The window always covers the current, partially elapsed interval plus
+ * the preceding <em>intervals - 1</em> complete ones; for example, a window of
+ * 6 intervals of 10 seconds each answers queries about the last 50 to 60
+ * seconds of observations.</p>
+ *
+ * <p><strong>Note that this implementation is not synchronized.</strong></p>
+ */
+public final class WindowedHistogram {
+    private final Histogram[] intervals;
+    private final Histogram window;
+    private final long intervalNanos;
+    private final LongSupplier clock;
+    private long epoch;
+
+    /**
+     * Construct an empty windowed histogram, using {@link System#nanoTime()}
+     * as its clock.
+     * @param maxBins maximum number of bins in each interval's histogram, and
+     *                in the merged histogram of the whole window
+     * @param intervals number of intervals in the window
+     * @param intervalNanos duration of each interval, in nanoseconds
+     */
+    public WindowedHistogram(int maxBins, int intervals, long intervalNanos) {
+        this(maxBins, intervals, intervalNanos, System::nanoTime);
+    }
+
+    /**
+     * Construct an empty windowed histogram, using a given clock.
+     * @param maxBins maximum number of bins in each interval's histogram, and
+     *                in the merged histogram of the whole window
+     * @param intervals number of intervals in the window
+     * @param intervalNanos duration of each interval, in nanoseconds
+     * @param clock source of the current time, in nanoseconds, with the same
+     *              semantics as {@link System#nanoTime()}
+     */
+    public WindowedHistogram(
+            int maxBins, int intervals, long intervalNanos, LongSupplier clock) {
+        this.intervals = new Histogram[intervals];
+        for (int i = 0; i < intervals; ++i) {
+            this.intervals[i] = new Histogram(maxBins);
+        }
+        this.window = new Histogram(maxBins);
+        this.intervalNanos = intervalNanos;
+        this.clock = clock;
+        this.epoch = Math.floorDiv(clock.getAsLong(), intervalNanos);
+    }
+
+    /**
+     * Update the current interval with a new observation.
+     * @param observation the new data point to be approximated
+     * @see Histogram#update(double)
+     */
+    public void update(double observation) {
+        current().update(observation);
+    }
+
+    /**
+     * Update the current interval with a new observation that occurred some
+     * number of times.
+     * @param observation the new data point to be approximated
+     * @param weight the number of times the data point was observed, which
+     *               must be positive
+     * @see Histogram#update(double, long)
+     */
+    public void update(double observation, long weight) {
+        current().update(observation, weight);
+    }
+
+    /**
+     * Update the current interval with a batch of new observations.
+     * @param observations an array containing the new data points
+     * @param offset index of the first new data point in the array
+     * @param length number of new data points in the array
+     * @see Histogram#update(double[], int, int)
+     */
+    public void update(double[] observations, int offset, int length) {
+        current().update(observations, offset, length);
+    }
+
+    /**
+     * Return the total number of observations in the window.
+     * @return the total number of observations in the window
+     */
+    public long count() {
+        rotate();
+        long count = 0;
+        for (Histogram interval : intervals) {
+            count += interval.count();
+        }
+        return count;
+    }
+
+    /**
+     * Query for approximate values at specified quantiles over the window.
+     * @param quantiles an array of quantiles, in any order
+     * @return an array containing the approximate values at the specified
+     * quantiles
+     * @see Histogram#query(double...)
+     */
+    public double[] query(double... quantiles) {
+        rotate();
+        window.reset();
+        for (Histogram interval : intervals) {
+            if (interval.count() != 0) {
+                window.merge(interval);
+            }
+        }
+        return window.query(quantiles);
+    }
+
+    private Histogram current() {
+        rotate();
+        return intervals[(int) Math.floorMod(epoch, (long) intervals.length)];
+    }
+
+    /**
+     * Advance the ring to the current interval, resetting every interval that
+     * has fallen out of the window.
+     */
+    private void rotate() {
+        long now = Math.floorDiv(clock.getAsLong(), intervalNanos);
+        long elapsed = Math.min(now - epoch, intervals.length);
+        for (long i = 1; i <= elapsed; ++i) {
+            intervals[(int) Math.floorMod(epoch + i, (long) intervals.length)].reset();
+        }
+        if (now > epoch) {
+            epoch = now;
+        }
+    }
+}
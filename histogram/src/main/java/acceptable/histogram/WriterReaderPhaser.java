@@ -0,0 +1,78 @@
+package acceptable.histogram;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * <p>A synchronization primitive which allows any number of writers to proceed
+ * without ever blocking, while a reader waits for writers to move from one
+ * "phase" to the next, based on Gil Tene's WriterReaderPhaser in HdrHistogram.
+ * Each writer brackets its critical section with
+ * {@link #writerCriticalSectionEnter()} and
+ * {@link #writerCriticalSectionExit(long)}, and uses the sign of the value
+ * returned by the former to choose which of two data structures to write to.
+ * The reader calls {@link #flipPhase()} to direct new writers to the other
+ * data structure, and waits until every writer in the previous phase has
+ * exited, after which the previous phase's data structure may be safely read
+ * and reset.</p>
+ *
+ * <p>Writers are wait-free: entering and exiting a critical section each cost
+ * a single atomic increment. Only one reader may flip the phase at a time; the
+ * caller is responsible for excluding concurrent readers.</p>
+ */
+final class WriterReaderPhaser {
+    private volatile long startEpoch = 0;
+    private volatile long evenEndEpoch = 0;
+    private volatile long oddEndEpoch = Long.MIN_VALUE;
+
+    private static final AtomicLongFieldUpdater<WriterReaderPhaser>
+            START_EPOCH = AtomicLongFieldUpdater.newUpdater(
+                    WriterReaderPhaser.class, "startEpoch"),
+            EVEN_END_EPOCH = AtomicLongFieldUpdater.newUpdater(
+                    WriterReaderPhaser.class, "evenEndEpoch"),
+            ODD_END_EPOCH = AtomicLongFieldUpdater.newUpdater(
+                    WriterReaderPhaser.class, "oddEndEpoch");
+
+    /**
+     * Enter a writer critical section.
+     * @return a value which must be passed to
+     * {@link #writerCriticalSectionExit(long)}, and which is negative if and
+     * only if the current phase is odd.
+     */
+    long writerCriticalSectionEnter() {
+        return START_EPOCH.getAndIncrement(this);
+    }
+
+    /**
+     * Exit a writer critical section.
+     * @param enter the value returned by the corresponding call to
+     *              {@link #writerCriticalSectionEnter()}
+     */
+    void writerCriticalSectionExit(long enter) {
+        (enter < 0 ? ODD_END_EPOCH : EVEN_END_EPOCH).getAndIncrement(this);
+    }
+
+    /**
+     * Flip the phase, and wait for all writers which entered their critical
+     * sections in the previous phase to exit them.
+     * @return true if the new phase is even, false if it is odd. Writers in an
+     * even phase receive nonnegative values from
+     * {@link #writerCriticalSectionEnter()}.
+     */
+    boolean flipPhase() {
+        boolean nextPhaseIsEven = startEpoch < 0;
+        long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        if (nextPhaseIsEven) {
+            evenEndEpoch = initialStartValue;
+        } else {
+            oddEndEpoch = initialStartValue;
+        }
+
+        // swap the start epoch, and wait for the end epoch of the previous
+        // phase to catch up with it.
+        long startValueAtFlip = START_EPOCH.getAndSet(this, initialStartValue);
+        while ((nextPhaseIsEven ? oddEndEpoch : evenEndEpoch) != startValueAtFlip) {
+            Thread.yield();
+        }
+        return nextPhaseIsEven;
+    }
+}
@@ -0,0 +1,55 @@
+package acceptable.histogram;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HistogramFileTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void histogramsMustSurviveReopening() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("histograms");
+        Random random = new Random(0);
+        double[] quantiles = {0, 0.01, 0.25, 0.5, 0.75, 0.99, 1};
+
+        // each slot must behave exactly like an ordinary histogram
+        Histogram[] expected = new Histogram[3];
+        try (HistogramFile file = HistogramFile.open(path, 10, expected.length)) {
+            for (int slot = 0; slot < expected.length; ++slot) {
+                expected[slot] = new Histogram(10);
+                for (int i = 0; i < 1000; ++i) {
+                    double observation = random.nextGaussian() + slot;
+                    expected[slot].update(observation);
+                    file.update(slot, observation);
+                }
+            }
+        }
+
+        try (HistogramFile file = HistogramFile.open(path, 10, expected.length)) {
+            for (int slot = 0; slot < expected.length; ++slot) {
+                assertEquals(expected[slot].count(), file.count(slot));
+                assertArrayEquals(
+                        expected[slot].query(quantiles),
+                        file.query(slot, quantiles),
+                        0);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void incompatibleFileMustNotOpen() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("histograms");
+        HistogramFile.open(path, 10, 3).close();
+        HistogramFile.open(path, 20, 3).close();
+    }
+}
@@ -0,0 +1,55 @@
+package acceptable.histogram;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramRecorderTest {
+
+    @Test
+    public void snapshotMustContainEveryObservation() throws InterruptedException {
+        HistogramRecorder recorder = new HistogramRecorder(10);
+        int threads = 8, observations = 100000;
+
+        // update the recorder from several threads, while taking snapshots
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; ++t) {
+            int offset = t;
+            new Thread(() -> {
+                for (int i = 0; i < observations; ++i) {
+                    recorder.update(offset * observations + i);
+                }
+                done.countDown();
+            }).start();
+        }
+        while (done.getCount() != 0) {
+            recorder.snapshot();
+        }
+        done.await();
+
+        Histogram snapshot = recorder.snapshot();
+        assertEquals(threads * observations, snapshot.count());
+        double[] actual = snapshot.query(0, 1);
+        assertEquals(0, actual[0], 0);
+        assertEquals(threads * observations - 1, actual[1], 0);
+    }
+
+    @Test
+    public void intervalHistogramMustContainOnlyTheLatestInterval() {
+        HistogramRecorder recorder = new HistogramRecorder(10);
+        Histogram interval = null;
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 100; ++j) {
+                recorder.update(i);
+            }
+            interval = recorder.intervalHistogram(interval);
+            assertEquals(100, interval.count());
+            double[] actual = interval.query(0, 1);
+            assertEquals(i, actual[0], 0);
+            assertEquals(i, actual[1], 0);
+        }
+        assertEquals(300, recorder.snapshot().count());
+    }
+}
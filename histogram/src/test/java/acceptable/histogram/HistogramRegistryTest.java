@@ -0,0 +1,112 @@
+package acceptable.histogram;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramRegistryTest {
+
+    @Test
+    public void seriesMustBehaveLikeHistograms() {
+        Random random = new Random(0);
+        double[] quantiles = {0, 0.01, 0.25, 0.5, 0.75, 0.99, 1};
+
+        // register enough series to span more than one slab, and update a
+        // few of them, including the first and last
+        HistogramRegistry registry =
+                new HistogramRegistry(10, HistogramRegistry.Precision.DOUBLE);
+        while (registry.size() < 100000) {
+            registry.register();
+        }
+        int[] ids = {0, 1, 50000, 99999};
+        Histogram[] expected = new Histogram[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            expected[i] = new Histogram(10);
+            for (int j = 0; j < 1000; ++j) {
+                double observation = random.nextGaussian() + i;
+                expected[i].update(observation);
+                registry.update(ids[i], observation);
+            }
+        }
+
+        for (int i = 0; i < ids.length; ++i) {
+            assertEquals(expected[i].count(), registry.count(ids[i]));
+            assertArrayEquals(
+                    expected[i].query(quantiles),
+                    registry.query(ids[i], quantiles),
+                    0);
+        }
+        assertEquals(0, registry.count(2));
+    }
+
+    @Test
+    public void floatSeriesMustApproximateDoubleSeries() {
+        Random random = new Random(0);
+        double[] quantiles = {0, 0.01, 0.25, 0.5, 0.75, 0.99, 1};
+
+        HistogramRegistry doubles =
+                new HistogramRegistry(10, HistogramRegistry.Precision.DOUBLE);
+        HistogramRegistry floats =
+                new HistogramRegistry(10, HistogramRegistry.Precision.FLOAT, true);
+        int lhs = doubles.register(), rhs = floats.register();
+        for (int i = 0; i < 1000; ++i) {
+            double observation = random.nextGaussian();
+            doubles.update(lhs, observation, 2);
+            floats.update(rhs, observation, 2);
+        }
+
+        assertEquals(doubles.count(lhs), floats.count(rhs));
+        assertArrayEquals(
+                doubles.query(lhs, quantiles),
+                floats.query(rhs, quantiles),
+                1e-4);
+        assertTrue(floats.footprint() < doubles.footprint());
+    }
+
+    @Test
+    public void unorderedQuantilesMustMatchHistograms() {
+        Random random = new Random(0);
+        double[] quantiles = {0.99, 0.5, 0.5, 1, 0.01, 0.75, 0, 0.25, 0.999};
+
+        HistogramRegistry registry =
+                new HistogramRegistry(10, HistogramRegistry.Precision.DOUBLE);
+        int id = registry.register();
+        Histogram expected = new Histogram(10);
+        for (int i = 0; i < 1000; ++i) {
+            double observation = random.nextGaussian();
+            expected.update(observation);
+            registry.update(id, observation);
+        }
+
+        assertArrayEquals(expected.query(quantiles), registry.query(id, quantiles), 1e-9);
+    }
+
+    @Test
+    public void saturatedFloatSeriesMustStayWithinItsRegion() {
+        HistogramRegistry registry =
+                new HistogramRegistry(4, HistogramRegistry.Precision.FLOAT);
+        int id = registry.register(), neighbour = registry.register();
+        registry.update(neighbour, 1000);
+
+        // a single bin saturates, and the excess is dropped from the total.
+        registry.update(id, 1, 1L << 32);
+        assertEquals(0xffffffffL, registry.count(id));
+        assertArrayEquals(new double[] {1, 1, 1}, registry.query(id, 0.5, 0.99, 1), 0);
+
+        // further updates, including merges into the saturated bin, keep the
+        // total equal to the sum of the bins.
+        for (int i = 0; i < 10; ++i) {
+            registry.update(id, 2 + i * 0.001, 1L << 31);
+        }
+        registry.update(id, 1, 5);
+        double[] actual = registry.query(id, 0.01, 0.5, 0.99, 0.999999, 1);
+        for (double value : actual) {
+            assertTrue(value >= 1 && value <= 2.01);
+        }
+        assertEquals(2.009, actual[4], 1e-6);
+    }
+}
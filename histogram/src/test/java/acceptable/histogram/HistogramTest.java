@@ -2,11 +2,16 @@ package acceptable.histogram;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class HistogramTest {
 
@@ -23,27 +28,384 @@ public class HistogramTest {
             histogram.update(observation);
             expected[i] = observation;
         }
+
+        assertFits(expected, histogram);
+    }
+
+    @Test
+    public void mergedHistogramMustFitData() {
+        Random random = new Random(0);
+
+        // spread observations across several histograms, as if each were
+        // updated by a different thread
+        Histogram[] shards = new Histogram[4];
+        Arrays.setAll(shards, i -> new Histogram(10));
+        double[] expected = new double[1000];
+        for (int i = 0; i < 1000; ++i) {
+            double observation = random.nextGaussian();
+            shards[i % shards.length].update(observation);
+            expected[i] = observation;
+        }
+
+        assertFits(expected, Histogram.merge(10, shards));
+    }
+
+    @Test
+    public void parallelHistogramMustFitData() {
+        Random random = new Random(0);
+        double[] expected = new double[100000];
+        Arrays.setAll(expected, i -> random.nextGaussian());
+
+        assertFits(expected, Histogram.of(10, expected));
+        assertFits(expected, Arrays.stream(expected).boxed()
+                .parallel()
+                .collect(Histogram.collector(10)));
+    }
+
+    @Test
+    public void batchUpdatedHistogramMustFitData() {
+        Random random = new Random(0);
+
+        // update the histogram in batches of various sizes
+        Histogram histogram = new Histogram(10);
+        double[] expected = new double[1000];
+        Arrays.setAll(expected, i -> random.nextGaussian());
+        for (int offset = 0, length = 1; offset < 1000; offset += length, length *= 2) {
+            histogram.update(expected, offset, Math.min(length, 1000 - offset));
+        }
+
+        assertFits(expected, histogram);
+    }
+
+    @Test
+    public void weightedUpdatesMustMatchRepeatedUpdates() {
+        // with enough bins that none are merged, the results must be exact
+        Histogram repeated = new Histogram(100);
+        Histogram weighted = new Histogram(100);
+        Histogram batched = new Histogram(100);
+        double[] observations = new double[50];
+        long[] weights = new long[50];
+        for (int i = 0; i < 50; ++i) {
+            // visit the observations out of order
+            int observation = (i * 7) % 50;
+            observations[i] = observation;
+            weights[i] = observation + 1;
+            for (int j = 0; j <= observation; ++j) {
+                repeated.update(observation);
+            }
+            weighted.update(observation, observation + 1);
+        }
+        batched.update(observations, weights, 0, 50);
+
+        double[] quantiles = {0, 0.01, 0.25, 0.5, 0.75, 0.99, 1};
+        double[] expected = repeated.query(quantiles);
+        assertEquals(repeated.count(), weighted.count());
+        assertEquals(repeated.count(), batched.count());
+        assertArrayEquals(expected, weighted.query(quantiles), 0);
+        assertArrayEquals(expected, batched.query(quantiles), 0);
+    }
+
+    @Test
+    public void mergeMustPreserveMinMaxAndCount() {
+        Histogram lhs = new Histogram(10), rhs = new Histogram(10);
+        for (int i = 0; i < 100; ++i) {
+            lhs.update(i);
+            rhs.update(-i);
+        }
+        lhs.merge(rhs);
+        double[] actual = lhs.query(0, 0.5, 1);
+        assertEquals(-99, actual[0], 0);
+        assertEquals(0, actual[1], 10);
+        assertEquals(99, actual[2], 0);
+    }
+
+    @Test
+    public void queryMustAcceptQuantilesInAnyOrder() {
+        Random random = new Random(0);
+        Histogram histogram = new Histogram(10);
+        for (int i = 0; i < 1000; ++i) {
+            histogram.update(random.nextGaussian());
+        }
+
+        double[] ordered = histogram.query(0, 0.1, 0.5, 0.9, 1);
+        double[] unordered = histogram.query(0.9, 0, 1, 0.5, 0.1);
+        assertArrayEquals(
+                new double[] {ordered[3], ordered[0], ordered[4], ordered[2], ordered[1]},
+                unordered,
+                0);
+    }
+
+    @Test
+    public void rankMustInvertQuery() {
+        Random random = new Random(0);
+        Histogram histogram = new Histogram(10);
+        for (int i = 0; i < 1000; ++i) {
+            histogram.update(random.nextGaussian());
+        }
+
+        for (double quantile = 0.05; quantile < 1; quantile += 0.05) {
+            double value = histogram.query(quantile)[0];
+            assertEquals(quantile, histogram.cdf(value), 1e-9);
+        }
+        assertEquals(0, histogram.rank(Double.NEGATIVE_INFINITY), 0);
+        assertEquals(1000, histogram.rank(Double.POSITIVE_INFINITY), 0);
+    }
+
+    @Test
+    public void statsMustCountUpdates() {
+        Histogram histogram = new Histogram(3);
+        histogram.update(1);
+        histogram.update(1);
+        histogram.update(3);
+        histogram.update(2);
+        histogram.update(4);
+
+        Histogram.Stats stats = histogram.stats();
+        assertEquals(5, stats.updates);
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.merges);
+        assertEquals(1, stats.shifts);
+        assertEquals(1, stats.maxShifts);
+        // three pairs once full, then three to refresh and find the closest
+        // pair, and three more after merging it
+        assertEquals(12, stats.scans);
+        assertEquals(0, stats.batches);
+    }
+
+    @Test
+    public void statsMustCountBatchesAndMerges() {
+        Histogram histogram = new Histogram(5);
+        histogram.update(new double[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, 0, 10);
+        Histogram other = new Histogram(5);
+        other.update(new double[] {11, 12, 13}, 0, 3);
+        histogram.merge(other);
+
+        Histogram.Stats stats = histogram.stats();
+        assertEquals(0, stats.updates);
+        assertEquals(1, stats.batches);
+        assertEquals(1, stats.histogramMerges);
+        assertEquals(5 + 3, stats.compactions);
+        assertEquals(13, histogram.count());
+
+        // histograms built from streams report their batches too
+        Histogram streamed = Histogram.of(10, new Random(0).doubles(10000).toArray());
+        assertEquals(0, streamed.stats().updates);
+        assertTrue(streamed.stats().batches > 0);
+        assertTrue(streamed.stats().compactions > 0);
+    }
+
+    @Test
+    public void readMustInvertWrite() {
+        Random random = new Random(0);
+        Histogram histogram = new Histogram(10);
+        for (int i = 0; i < 1000; ++i) {
+            histogram.update(random.nextGaussian());
+        }
+
+        double[] quantiles = {0, 0.01, 0.25, 0.5, 0.75, 0.99, 1};
+        double[] expected = histogram.query(quantiles);
+        for (boolean compressed : new boolean[] {false, true}) {
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.encodedSize(compressed));
+            histogram.write(buffer, compressed);
+            assertEquals(0, buffer.remaining());
+            buffer.flip();
+            Histogram actual = Histogram.read(buffer);
+            assertEquals(histogram.count(), actual.count());
+            assertArrayEquals(expected, actual.query(quantiles), 0);
+        }
+    }
+
+    @Test
+    public void corruptEncodingsMustBeRejected() {
+        Histogram histogram = new Histogram(10);
+        histogram.update(1);
+        histogram.update(2, 3);
+        histogram.update(4);
+
+        // offsets of the header fields and of the first two uncompressed bins
+        int maxBins = 1, count = 5, bins = 29, centroid0 = 33, count0 = 41, centroid1 = 49;
+        ByteBuffer valid = ByteBuffer.allocate(histogram.encodedSize(false));
+        histogram.write(valid, false);
+
+        assertCorrupt(valid, buffer -> buffer.putInt(maxBins, Integer.MAX_VALUE));
+        assertCorrupt(valid, buffer -> buffer.putInt(maxBins, 0));
+        assertCorrupt(valid, buffer -> buffer.putInt(maxBins, 1 << 24).putInt(bins, 1 << 24));
+        assertCorrupt(valid, buffer -> buffer.putInt(bins, 11));
+        assertCorrupt(valid, buffer -> buffer.putLong(count, 6));
+        assertCorrupt(valid, buffer -> buffer.putLong(count0, 0).putLong(count, 4));
+        assertCorrupt(valid, buffer -> buffer.putDouble(centroid1, 0.5));
+        assertCorrupt(valid, buffer -> buffer.putDouble(centroid0, Double.NaN));
+
+        // the corruptions are detected in the compressed encoding too
+        ByteBuffer compressed = ByteBuffer.allocate(histogram.encodedSize(true));
+        histogram.write(compressed, true);
+        assertCorrupt(compressed, buffer -> buffer.putLong(count, 6));
+        assertCorrupt(compressed, buffer -> buffer.putInt(bins, 1 << 20).putInt(maxBins, 1 << 20));
+    }
+
+    private static void assertCorrupt(ByteBuffer valid, Consumer<ByteBuffer> corruption) {
+        ByteBuffer buffer = ByteBuffer.allocate(valid.capacity());
+        buffer.put(valid.array());
+        corruption.accept(buffer);
+        buffer.clear();
+        try {
+            Histogram.read(buffer);
+            fail("read a corrupt histogram");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closestPairMustMatchLinearScanAcrossBlocks() {
+        Random random = new Random(0);
+        int length = 20000;
+        double[][] streams = new double[5][length];
+        // random data
+        Arrays.setAll(streams[0], i -> random.nextGaussian());
+        // ascending and descending sorted data
+        Arrays.setAll(streams[1], i -> i * 0.5);
+        Arrays.setAll(streams[2], i -> -i * 0.5);
+        // many duplicates, which produce equal deltas across blocks
+        Arrays.setAll(streams[3], i -> random.nextInt(1000));
+        // evenly spaced data in a random order, so that every pair is tied
+        Arrays.setAll(streams[4], i -> (i * 7919) % length);
+
+        for (int maxBins : new int[] {17, 100, 257}) {
+            for (double[] stream : streams) {
+                Histogram histogram = new Histogram(maxBins);
+                LinearScanHistogram reference = new LinearScanHistogram(maxBins);
+                for (double observation : stream) {
+                    histogram.update(observation);
+                    reference.update(observation);
+                    assertArrayEquals(reference.encode(), encode(histogram));
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(Histogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.encodedSize(false));
+        histogram.write(buffer, false);
+        return buffer.array();
+    }
+
+    /**
+     * The original update algorithm, which finds the closest pair of bins with
+     * a linear scan, as a reference for the tree of deltas.
+     */
+    private static final class LinearScanHistogram {
+        private final int maxBins;
+        private final double[] centroids;
+        private final long[] counts;
+        private int bins = 0, gap = 0;
+        private long count = 0;
+        private double
+                min = Double.POSITIVE_INFINITY,
+                max = Double.NEGATIVE_INFINITY;
+
+        LinearScanHistogram(int maxBins) {
+            this.maxBins = maxBins;
+            this.centroids = new double[maxBins + 1];
+            this.counts = new long[maxBins + 1];
+        }
+
+        void update(double observation) {
+            count += 1;
+            if (observation < min) min = observation;
+            if (observation > max) max = observation;
+            while (true) {
+                if (gap != 0) {
+                    if (centroids[gap - 1] > observation) {
+                        centroids[gap] = centroids[gap - 1];
+                        counts[gap] = counts[gap - 1];
+                        gap--;
+                        continue;
+                    } else if (centroids[gap - 1] == observation) {
+                        counts[gap - 1]++;
+                        return;
+                    }
+                }
+                if (gap != bins) {
+                    if (centroids[gap + 1] < observation) {
+                        centroids[gap] = centroids[gap + 1];
+                        counts[gap] = counts[gap + 1];
+                        gap++;
+                        continue;
+                    } else if (centroids[gap + 1] == observation) {
+                        counts[gap + 1]++;
+                        return;
+                    }
+                }
+                break;
+            }
+            centroids[gap] = observation;
+            counts[gap] = 1;
+            if (bins != maxBins) {
+                bins += 1;
+                gap = bins;
+                return;
+            }
+            double minDelta = Double.POSITIVE_INFINITY;
+            for (int bin = 0; bin < bins; ++bin) {
+                double delta = centroids[bin + 1] - centroids[bin];
+                if (delta < minDelta) {
+                    gap = bin;
+                    minDelta = delta;
+                }
+            }
+            centroids[gap + 1] =
+                    (centroids[gap] * counts[gap] +
+                     centroids[gap + 1] * counts[gap + 1]) /
+                    (counts[gap] + counts[gap + 1]);
+            counts[gap + 1] = counts[gap] + counts[gap + 1];
+        }
+
+        /**
+         * Encode the bins in the same format as
+         * {@link Histogram#write(ByteBuffer, boolean) uncompressed writes}.
+         */
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 8 + 8 + 8 + 4 + bins * (8 + 8));
+            buffer.put((byte) 0);
+            buffer.putInt(maxBins);
+            buffer.putLong(count);
+            buffer.putDouble(min);
+            buffer.putDouble(max);
+            buffer.putInt(bins);
+            for (int bin = 0; bin <= bins; ++bin) {
+                if (bin == gap) continue;
+                buffer.putDouble(centroids[bin]);
+                buffer.putLong(counts[bin]);
+            }
+            return buffer.array();
+        }
+    }
+
+    private static void assertFits(double[] expected, Histogram histogram) {
+        int length = expected.length;
+        expected = expected.clone();
         Arrays.sort(expected);
 
         // query the histogram at quantiles from 0 to 1 inclusive
-        double[] quantiles = new double[1000];
-        Arrays.setAll(quantiles, i -> i / 999d);
+        double[] quantiles = new double[length];
+        Arrays.setAll(quantiles, i -> i / (length - 1d));
         double[] actual = histogram.query(quantiles);
 
         // compute R squared ...
         double mean = 0;
-        for (int i = 0; i < 1000; ++i) {
+        for (int i = 0; i < length; ++i) {
             mean += actual[i];
         }
-        mean /= 1000;
+        mean /= length;
 
         double residualSumOfSquares = 0, totalSumOfSquares = 0;
-        for (int i = 0; i < 1000; ++i) {
+        for (int i = 0; i < length; ++i) {
             residualSumOfSquares += Math.pow(actual[i] - expected[i], 2);
             totalSumOfSquares += Math.pow(actual[i] - mean, 2);
         }
-        residualSumOfSquares = Math.sqrt(residualSumOfSquares / 1000);
-        totalSumOfSquares = Math.sqrt(totalSumOfSquares / 1000);
+        residualSumOfSquares = Math.sqrt(residualSumOfSquares / length);
+        totalSumOfSquares = Math.sqrt(totalSumOfSquares / length);
         assertEquals(1, 1 - residualSumOfSquares / totalSumOfSquares, 0.05);
     }
 }
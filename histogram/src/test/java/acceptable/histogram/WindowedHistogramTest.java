@@ -0,0 +1,34 @@
+package acceptable.histogram;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WindowedHistogramTest {
+
+    private long now = 0;
+
+    @Test
+    public void windowMustForgetExpiredIntervals() {
+        WindowedHistogram histogram =
+                new WindowedHistogram(10, 3, 1000, () -> now);
+
+        // record a distinct value in each of five consecutive intervals
+        for (int i = 0; i < 5; ++i) {
+            now = i * 1000;
+            for (int j = 0; j < 10; ++j) {
+                histogram.update(i);
+            }
+        }
+
+        // only the last three intervals should remain in the window
+        assertEquals(30, histogram.count());
+        double[] actual = histogram.query(0, 1);
+        assertEquals(2, actual[0], 0);
+        assertEquals(4, actual[1], 0);
+
+        // after a long pause, the window should be empty
+        now += 1000000;
+        assertEquals(0, histogram.count());
+    }
+}
@@ -0,0 +1,169 @@
+package acceptable.latency;
+
+import acceptable.histogram.Histogram;
+import acceptable.stopwatch.NanotimeStopwatch;
+import acceptable.stopwatch.NanotimeStopwatch.Inactive;
+import acceptable.stopwatch.NanotimeStopwatch.Overflow;
+
+import java.util.function.LongSupplier;
+
+/**
+ * <p>A {@link NanotimeStopwatch} which records how long its timers run into
+ * approximate {@link Histogram histograms}, so that latency quantiles and
+ * timeout rates come from the same structure that times requests. Each timer
+ * belongs to one of a fixed number of classes, such as the kinds of request
+ * being timed, and each class has two histograms: one of the time elapsed
+ * before timers were {@link #stop(int) stopped}, and one of the time elapsed
+ * before timers {@link #tick(int[]) expired}.</p>
+ *
+ * <p>The clock is read once per operation, and the same reading is shared by
+ * the stopwatch and the histograms. Recording allocates nothing.</p>
+ *
+ * <p><strong>Note that this implementation is not synchronized.</strong></p>
+ */
+public final class LatencyStopwatch {
+    private final NanotimeStopwatch stopwatch;
+    private final LongSupplier clock;
+    private final Histogram[] stopped;
+    private final Histogram[] expired;
+    private final NanotimeStopwatch.Expiry recordExpiry;
+
+    // the clock reading for the operation in progress
+    private long now;
+
+    /**
+     * Construct a LatencyStopwatch, using {@link System#nanoTime()} as its
+     * clock.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     * @param classes The number of classes of timers.
+     * @param maxBins The maximum number of bins in each histogram.
+     */
+    public LatencyStopwatch(long resolution, int capacity, int classes, int maxBins) {
+        this(resolution, capacity, classes, maxBins, System::nanoTime);
+    }
+
+    /**
+     * Construct a LatencyStopwatch, using a given clock.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     * @param classes The number of classes of timers.
+     * @param maxBins The maximum number of bins in each histogram.
+     * @param clock The source of the current time, in nanoseconds, with the
+     *              same semantics as {@link System#nanoTime()}.
+     */
+    public LatencyStopwatch(
+            long resolution, int capacity, int classes, int maxBins,
+            LongSupplier clock) {
+        this.clock = clock;
+        this.now = clock.getAsLong();
+        this.stopwatch = new NanotimeStopwatch(resolution, capacity, () -> now);
+        this.stopped = new Histogram[classes];
+        this.expired = new Histogram[classes];
+        for (int c = 0; c < classes; ++c) {
+            stopped[c] = new Histogram(maxBins);
+            expired[c] = new Histogram(maxBins);
+        }
+        // each timer's class is its tag in the underlying stopwatch
+        this.recordExpiry = (index, tag, elapsed) -> expired[(int) tag].update(elapsed);
+    }
+
+    /**
+     * Return the maximum number of concurrently active timers.
+     * @return The maximum number of concurrently active timers.
+     */
+    public int capacity() {
+        return stopwatch.capacity;
+    }
+
+    /**
+     * Start a new timer of a given class with a given duration.
+     * @param duration The duration, in nanoseconds, of the timer.
+     * @param timerClass The class of the timer.
+     * @return The index of the timer.
+     * @throws Overflow Thrown if the number of active timers is at capacity.
+     * @see NanotimeStopwatch#start(long, long)
+     */
+    public int start(long duration, int timerClass) throws Overflow {
+        if (timerClass < 0 || timerClass >= stopped.length) {
+            throw new IndexOutOfBoundsException("class: " + timerClass);
+        }
+        now = clock.getAsLong();
+        return NanotimeStopwatch.index(stopwatch.start(duration, timerClass));
+    }
+
+    /**
+     * Stop an active timer, record the time elapsed since it was started in
+     * its class's histogram of stopped timers, and return that time.
+     * @param index The index of the timer.
+     * @return The time, in nanoseconds, elapsed since the timer was started.
+     * @throws Inactive Thrown if the index references an inactive timer.
+     * @see NanotimeStopwatch#stop(int)
+     */
+    public long stop(int index) throws Inactive {
+        now = clock.getAsLong();
+        int timerClass = (int) stopwatch.tag(index);
+        long elapsed = stopwatch.stop(index);
+        stopped[timerClass].update(elapsed);
+        return elapsed;
+    }
+
+    /**
+     * Deactivate and return all timers that have expired since the previous
+     * tick, and record the time each ran before expiring in its class's
+     * histogram of expired timers.
+     * @param expired Buffer into which all expired timers will be copied.
+     * @return The number of expired timers.
+     * @see NanotimeStopwatch#tick(int[], NanotimeStopwatch.Expiry)
+     */
+    public int tick(int[] expired) {
+        now = clock.getAsLong();
+        return stopwatch.tick(expired, recordExpiry);
+    }
+
+    /**
+     * Return the histogram of the time elapsed before timers of a given class
+     * were stopped. The histogram belongs to this stopwatch, and continues to
+     * be updated.
+     * @param timerClass The class of timers.
+     * @return The histogram of stopped timers, in nanoseconds.
+     */
+    public Histogram stopped(int timerClass) {
+        return stopped[timerClass];
+    }
+
+    /**
+     * Return the histogram of the time elapsed before timers of a given class
+     * expired. The histogram belongs to this stopwatch, and continues to be
+     * updated.
+     * @param timerClass The class of timers.
+     * @return The histogram of expired timers, in nanoseconds.
+     */
+    public Histogram expired(int timerClass) {
+        return expired[timerClass];
+    }
+
+    /**
+     * Return the fraction of finished timers of a given class which expired
+     * rather than being stopped.
+     * @param timerClass The class of timers.
+     * @return The timeout rate, or NaN if no timers have finished.
+     */
+    public double timeoutRate(int timerClass) {
+        long timeouts = expired[timerClass].count();
+        return (double) timeouts / (timeouts + stopped[timerClass].count());
+    }
+
+    /**
+     * Remove all observations from every histogram, without affecting any
+     * active timers.
+     */
+    public void reset() {
+        for (int c = 0; c < stopped.length; ++c) {
+            stopped[c].reset();
+            expired[c].reset();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package acceptable.latency;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyStopwatchTest {
+
+    private long now = 0;
+
+    @Test
+    public void stoppedAndExpiredTimersMustBeRecorded() {
+        LatencyStopwatch stopwatch = new LatencyStopwatch(10, 100, 2, 10, () -> now);
+        int[] expired = new int[stopwatch.capacity()];
+
+        // in class 0, three timers are stopped and one expires
+        int[] indices = new int[4];
+        for (int i = 0; i < indices.length; ++i) {
+            indices[i] = stopwatch.start(100, 0);
+        }
+        now = 20;
+        stopwatch.stop(indices[0]);
+        now = 30;
+        stopwatch.stop(indices[1]);
+        now = 40;
+        stopwatch.stop(indices[2]);
+        now = 135;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(indices[3], expired[0]);
+
+        // in class 1, a timer started later expires, and one is still active
+        int late = stopwatch.start(100, 1);
+        stopwatch.start(1000, 1);
+        now = 250;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(late, expired[0]);
+
+        assertEquals(3, stopwatch.stopped(0).count());
+        assertEquals(1, stopwatch.expired(0).count());
+        assertEquals(20, stopwatch.stopped(0).query(0)[0], 0);
+        assertEquals(40, stopwatch.stopped(0).query(1)[0], 0);
+        assertEquals(135, stopwatch.expired(0).query(1)[0], 0);
+        assertEquals(0.25, stopwatch.timeoutRate(0), 0);
+        assertEquals(0, stopwatch.stopped(1).count());
+        assertEquals(1, stopwatch.expired(1).count());
+        assertEquals(115, stopwatch.expired(1).query(1)[0], 0);
+        assertEquals(1, stopwatch.timeoutRate(1), 0);
+    }
+}
@@ -0,0 +1,63 @@
+package acceptable.math;
+
+public final class Longs {
+    private Longs() {}
+
+    private static final long MASK = 0xFFFFFFFFL, BASE = 1L << 32;
+
+    /**
+     * Compute floor(a * b / c) without overflowing, using the full 128-bit
+     * product of a and b. The remainder can be recovered with ordinary
+     * wrapping arithmetic, as {@code a * b - q * c}.
+     * @param a nonnegative multiplicand.
+     * @param b nonnegative multiplier.
+     * @param c positive divisor, such that the quotient fits in a long (for
+     *          example, a ≤ c).
+     * @return floor(a * b / c).
+     */
+    public static long multiplyDivide(long a, long b, long c) {
+        // high and low halves of the unsigned 128-bit product a * b.
+        long a1 = a >>> 32, a0 = a & MASK, b1 = b >>> 32, b0 = b & MASK;
+        long p01 = a0 * b1, p10 = a1 * b0;
+        long mid = ((a0 * b0) >>> 32) + (p01 & MASK) + (p10 & MASK);
+        long hi = a1 * b1 + (p01 >>> 32) + (p10 >>> 32) + (mid >>> 32);
+        long lo = a * b;
+        return divide(hi, lo, c);
+    }
+
+    /**
+     * Divide the unsigned 128-bit number (u1, u0) by v, where u1 &lt; v, as in
+     * Warren, "Hacker's Delight" (2nd ed.), section 9-4: the divisor is
+     * normalized so that its high bit is set, and the quotient is computed
+     * one 32-bit digit at a time.
+     */
+    private static long divide(long u1, long u0, long v) {
+        int s = Long.numberOfLeadingZeros(v);
+        v <<= s;
+        long vn1 = v >>> 32, vn0 = v & MASK;
+        long un32 = s == 0 ? u1 : u1 << s | u0 >>> (64 - s);
+        long un10 = u0 << s;
+        long un1 = un10 >>> 32, un0 = un10 & MASK;
+
+        long q1 = Long.divideUnsigned(un32, vn1);
+        long rhat = un32 - q1 * vn1;
+        while (Long.compareUnsigned(q1, BASE) >= 0
+                || Long.compareUnsigned(q1 * vn0, rhat << 32 | un1) > 0) {
+            --q1;
+            rhat += vn1;
+            if (Long.compareUnsigned(rhat, BASE) >= 0) break;
+        }
+
+        long un21 = (un32 << 32 | un1) - q1 * v;
+        long q0 = Long.divideUnsigned(un21, vn1);
+        rhat = un21 - q0 * vn1;
+        while (Long.compareUnsigned(q0, BASE) >= 0
+                || Long.compareUnsigned(q0 * vn0, rhat << 32 | un0) > 0) {
+            --q0;
+            rhat += vn1;
+            if (Long.compareUnsigned(rhat, BASE) >= 0) break;
+        }
+
+        return q1 << 32 | q0;
+    }
+}
@@ -45,6 +45,20 @@ public final class Rationals {
         return unsafeEncode(numerator / gcd, denominator / gcd);
     }
 
+    /**
+     * Construct a dyadic rational number, numerator / 2<sup>exponent</sup>,
+     * encoded as a long. The number is simplified as by
+     * {@link #encode(int, int)}, but by shifting out common factors of two
+     * rather than computing a gcd.
+     * @param numerator int numerator.
+     * @param exponent base 2 logarithm of the denominator, in [0, 30].
+     * @return a simplified encoding of the given rational number as a long.
+     */
+    public static long dyadic(int numerator, int exponent) {
+        int shift = Math.min(Integer.numberOfTrailingZeros(numerator), exponent);
+        return unsafeEncode(numerator >> shift, 1 << (exponent - shift));
+    }
+
     /**
      * Decode the numerator of a rational number encoded as a long.
      * @param rational a rational number with int numerator and denominator
@@ -0,0 +1,41 @@
+package acceptable.math;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static acceptable.math.Longs.multiplyDivide;
+import static org.junit.Assert.assertEquals;
+
+public class LongsTest {
+
+    private final Random random = new Random(0);
+
+    private static long expected(long a, long b, long c) {
+        return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b))
+                .divide(BigInteger.valueOf(c)).longValueExact();
+    }
+
+    @Test
+    public void multiplyDivideMatchesBigInteger() {
+        for (int trial = 0; trial < 1000000; ++trial) {
+            long c = (random.nextLong() >>> random.nextInt(63)) + 1;
+            if (c < 0) c = Long.MAX_VALUE;
+            long a = (random.nextLong() >>> 1) % c;
+            long b = random.nextLong() >>> (1 + random.nextInt(63));
+            assertEquals(expected(a, b, c), multiplyDivide(a, b, c));
+        }
+    }
+
+    @Test
+    public void multiplyDivideHandlesExtremes() {
+        long max = Long.MAX_VALUE;
+        assertEquals(0, multiplyDivide(0, max, max));
+        assertEquals(max, multiplyDivide(max, max, max));
+        assertEquals(max - 1, multiplyDivide(max - 1, max, max));
+        assertEquals(expected(max - 2, max, max - 1), multiplyDivide(max - 2, max, max - 1));
+        assertEquals(3, multiplyDivide(1, 7, 2));
+        assertEquals(1L << 61, multiplyDivide(1L << 62, 1L << 61, 1L << 62));
+    }
+}
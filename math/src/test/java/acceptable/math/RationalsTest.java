@@ -16,6 +16,15 @@ public class RationalsTest {
         assertEquals(4, denominator(actual));
     }
 
+    @Test
+    public void dyadicRationalMustSimplify() {
+        assertEquals(encode(3, 4), dyadic(12, 4));
+        assertEquals(encode(5, 1 << 30), dyadic(5, 30));
+        assertEquals(encode(-3, 2), dyadic(-12, 3));
+        assertEquals(encode(0, 1), dyadic(0, 30));
+        assertEquals(encode(7, 1), dyadic(7, 0));
+    }
+
     @Test
     public void rationalDenominatorMustBeNonnegative() {
         long actual = encode(3, -4);
@@ -0,0 +1,211 @@
+package acceptable.probability;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Discrete probability distribution with mutable integer weights. Like
+ * {@link IntProbabilityDistribution}, calls to {@link #next(Random)} return
+ * index <em>i</em> with probability <em>w<sub>i</sub> / Σw</em>, but here
+ * each weight may be changed with {@link #setWeight(int, long)} in
+ * <em>O(log size)</em> time, without rebuilding any tables. Sampling also
+ * takes <em>O(log size)</em> time. For example:</p>
+ * <pre>{@code
+ * DynamicIntProbabilityDistribution d = new DynamicIntProbabilityDistribution(2, 3, 5);
+ * d.setWeight(0, 0);
+ * int sample = d.next();}</pre>
+ * <p>Here, {@code sample} will be 1 with 37.5% probability, and 2 with 62.5%
+ * probability.</p>
+ *
+ * <p>A single thread at a time may change weights, while any number of
+ * threads sample concurrently. Each sample is drawn from a consistent set of
+ * weights, which are either those before or after any concurrent change.</p>
+ */
+public final class DynamicIntProbabilityDistribution {
+
+    /*
+     * The weights are the leaves of a complete binary sum tree, stored
+     * implicitly in an array: the root is at index 1, the children of node k
+     * are at 2k and 2k + 1, and weight i is at capacity + i, where capacity is
+     * the least power of two at least as large as size. Each internal node
+     * holds the sum of its children, so the root holds the total weight.
+     *
+     * Sampling draws r uniformly from [0, Σw) and descends from the root,
+     * going left if r is less than the left child's sum, and otherwise
+     * subtracting that sum and going right. A leaf is only ever reached with
+     * r less than its weight, so zero weights are never chosen.
+     *
+     * Changing a weight updates its leaf and each of its ancestors. Readers
+     * synchronize with the writer using a sequence lock: the writer makes the
+     * version odd before updating the tree and even afterward, and a reader
+     * retries if the version was odd, or changed while it descended. All
+     * accesses to the tree are volatile, so they can't be reordered across
+     * the version updates.
+     */
+
+    private final int size;
+    private final int capacity;
+    private final AtomicLongArray tree;
+    private volatile long version;
+
+    /**
+     * Construct a discrete probability distribution with integer weights
+     * <em>w<sub>0</sub></em>, <em>w<sub>1</sub></em>, ...
+     * <em>w<sub>size - 1</sub></em> totaling <em>Σw</em>. Weights of zero
+     * are allowed, but the total weight must be positive before sampling.
+     * @param weights indexed list of nonnegative integer weights.
+     * @throws IllegalArgumentException if any weight is negative.
+     * @throws ArithmeticException if the total weight overflows a long.
+     */
+    public DynamicIntProbabilityDistribution(long... weights) {
+        size = weights.length;
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+
+        // fill in the leaves, and then each internal node from the bottom up.
+        long[] tree = new long[2 * capacity];
+        for (int i = 0; i < size; ++i) {
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("weight must be nonnegative: " + weights[i]);
+            }
+            tree[capacity + i] = weights[i];
+        }
+        for (int k = capacity - 1; k > 0; --k) {
+            tree[k] = Math.addExact(tree[2 * k], tree[2 * k + 1]);
+        }
+        this.tree = new AtomicLongArray(tree);
+    }
+
+    /**
+     * Return the number of indices in this distribution.
+     * @return the number of weights.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the current weight of a given index.
+     * @param index an index in [0, size).
+     * @return the weight of the index.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public long weight(int index) {
+        checkIndex(index);
+        return tree.get(capacity + index);
+    }
+
+    /**
+     * Return the current total weight <em>Σw</em>.
+     * @return the sum of all weights.
+     */
+    public long totalWeight() {
+        return tree.get(1);
+    }
+
+    /**
+     * Change the weight of a given index, in <em>O(log size)</em> time. Only
+     * one thread at a time may call this method, but other threads may sample
+     * concurrently.
+     * @param index an index in [0, size).
+     * @param weight the new nonnegative weight of the index.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     * @throws IllegalArgumentException if the weight is negative.
+     * @throws ArithmeticException if the total weight would overflow a long,
+     * in which case no weights are changed.
+     */
+    public void setWeight(int index, long weight) {
+        checkIndex(index);
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight must be nonnegative: " + weight);
+        }
+        int k = capacity + index;
+        long delta = weight - tree.get(k);
+        Math.addExact(tree.get(1), delta);
+
+        version = version + 1;
+        for (; k > 0; k >>>= 1) {
+            tree.set(k, tree.get(k) + delta);
+        }
+        version = version + 1;
+    }
+
+    /**
+     * Return index <em>i</em> with probability <em>w<sub>i</sub> / Σw</em>,
+     * using a given random number generator.
+     * @param random Java standard random number generator.
+     * @return a random index.
+     * @throws IllegalStateException if the total weight is zero.
+     */
+    public int next(Random random) {
+        while (true) {
+            long before = version;
+            long total = tree.get(1);
+            if (total == 0) {
+                throw new IllegalStateException("total weight is zero");
+            }
+            int index = descend(nextLong(random, total));
+            if ((before & 1) == 0 && version == before) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Return index <em>i</em> with probability <em>w<sub>i</sub> / Σw</em>,
+     * using the current thread's random number generator.
+     * @return a random index.
+     * @throws IllegalStateException if the total weight is zero.
+     * @see #next(Random)
+     * @see ThreadLocalRandom
+     */
+    public int next() {
+        return next(ThreadLocalRandom.current());
+    }
+
+    /**
+     * Find the leaf whose range of cumulative weight contains r. If the tree
+     * is changed concurrently, the result is meaningless but in range.
+     */
+    private int descend(long r) {
+        int k = 1;
+        while (k < capacity) {
+            long left = tree.get(2 * k);
+            if (r < left) {
+                k = 2 * k;
+            } else {
+                r -= left;
+                k = 2 * k + 1;
+            }
+        }
+        return Math.min(k - capacity, size - 1);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+    }
+
+    /**
+     * Return a long uniformly distributed in [0, bound), as
+     * {@link ThreadLocalRandom#nextLong(long)} does, since {@link Random}
+     * has no such method.
+     */
+    private static long nextLong(Random random, long bound) {
+        long m = bound - 1, r = random.nextLong();
+        if ((bound & m) == 0) {
+            return r & m;
+        }
+        // reject draws from the final, partial multiple of bound
+        long u = r >>> 1;
+        while (u + m - (r = u % bound) < 0) {
+            u = random.nextLong() >>> 1;
+        }
+        return r;
+    }
+}
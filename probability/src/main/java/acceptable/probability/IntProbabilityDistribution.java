@@ -1,9 +1,16 @@
 package acceptable.probability;
 
-import acceptable.data.Stack;
+import acceptable.math.Longs;
 
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 import static acceptable.math.Rationals.*;
 
@@ -18,7 +25,9 @@ import static acceptable.math.Rationals.*;
  * IntProbabilityDistribution d = new IntProbabilityDistribution(2, 3, 5);
  * int sample = d.next();}</pre>
  * Here, {@code sample} will be 0 with 20% probability, 1 with 30% probability,
- * and 2 with 50% probability.
+ * and 2 with 50% probability. Distributions with very many or very large
+ * weights can be constructed with {@link #of(long...)} or
+ * {@link #of(double...)}.
  */
 public final class IntProbabilityDistribution {
 
@@ -27,67 +36,269 @@ public final class IntProbabilityDistribution {
      * for generating random numbers with a given distribution." Rational
      * numbers are used as probabilities here instead of floating point to avoid
      * rounding errors.
+     *
+     * The exact table is also compiled into a packed table, in which each
+     * entry holds the alias of a bin in its low 32 bits, and the probability
+     * of keeping the bin, rounded down to a 32-bit unsigned fixed point
+     * fraction, in its high 32 bits, for nextFast. The aliases aren't stored
+     * anywhere else; next reads them from the packed table too. A bin which
+     * is always kept (p = 1) is its own alias, so that the threshold doesn't
+     * need a 33rd bit.
+     *
+     * When the weights are too large for exact rational arithmetic in ints,
+     * they are instead quantized to integer shares of size · 2^30, and the
+     * alias method runs in long arithmetic on those shares. The resulting
+     * probabilities are multiples of 2^-30, so they can still be encoded as
+     * int rationals for next, and as exact 32-bit thresholds for nextFast.
      */
 
+    private static final int SCALE_BITS = 30;
+    private static final long SCALE = 1L << SCALE_BITS;
+
     private final int size;
-    private final int[] aliases;
     private final long[] probabilities;
+    private final long[] table;
 
     /**
      * Construct a discrete probability distribution with integer weights
      * <em>w<sub>0</sub></em>, <em>w<sub>1</sub></em>, ...
-     * <em>w<sub>size - 1</sub></em> totaling <em>Σw</em>.
-     * @param weights indexed list of integer weights.
+     * <em>w<sub>size - 1</sub></em> totaling <em>Σw</em>. If
+     * <em>2 · size · Σw</em> fits in an int, the distribution is exact;
+     * otherwise it is quantized, as described in {@link #of(long...)}.
+     * @param weights indexed list of nonnegative integer weights.
+     * @throws IllegalArgumentException if any weight is negative, or the total
+     * weight isn't positive.
      */
-    @SuppressWarnings("unchecked")
     public IntProbabilityDistribution(int... weights) {
-        size = weights.length;
-        aliases = new int[size];
-        probabilities = new long[size];
+        this(weights.length);
 
         // compute the total weight
-        int totalWeight = 0;
+        long totalWeight = 0;
         for (int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight must be nonnegative: " + weight);
+            }
             totalWeight += weight;
         }
+        build(i -> weights[i], totalWeight);
+    }
 
-        // populate the "small" and "large" stacks.
-        Stack<Integer> smalls = Stack.empty(), larges = Stack.empty();
+    private IntProbabilityDistribution(int size) {
+        this.size = size;
+        probabilities = new long[size];
+        table = new long[size];
+    }
+
+    /**
+     * <p>Construct a discrete probability distribution with long integer
+     * weights, such as counts. If <em>2 · size · Σw</em> fits in an int, the
+     * distribution is exact, and identical to one constructed with
+     * {@link #IntProbabilityDistribution(int...)}.</p>
+     *
+     * <p>Otherwise, each weight is quantized to a multiple of
+     * 2<sup>-30</sup> / size, rounding each share of the total weight up or
+     * down such that the shares total exactly 1. The probability of each
+     * index differs from <em>w<sub>i</sub> / Σw</em> by less than
+     * 2<sup>-30</sup> / size, so the total variation distance from the exact
+     * distribution is less than 2<sup>-31</sup>. Sampling with
+     * {@link #next(Random)} is exact with respect to the quantized
+     * distribution.</p>
+     *
+     * <p>Either way, construction takes linear time, and allocates nothing
+     * but the tables themselves and a single int array as a work queue.</p>
+     * @param weights indexed list of nonnegative long integer weights.
+     * @return a new distribution with the given weights.
+     * @throws IllegalArgumentException if any weight is negative, or the total
+     * weight isn't positive.
+     * @throws ArithmeticException if the total weight overflows a long.
+     */
+    public static IntProbabilityDistribution of(long... weights) {
+        long totalWeight = 0;
+        for (long weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight must be nonnegative: " + weight);
+            }
+            totalWeight = Math.addExact(totalWeight, weight);
+        }
+
+        IntProbabilityDistribution d = new IntProbabilityDistribution(weights.length);
+        d.build(i -> weights[i], totalWeight);
+        return d;
+    }
+
+    /**
+     * Construct a discrete probability distribution with floating point
+     * weights. The distribution is always quantized, as described in
+     * {@link #of(long...)}, except that each weight's share of the total is
+     * computed in floating point, so the error bound also includes the
+     * rounding error of the total weight and of each share, which is
+     * proportional to 2<sup>-53</sup>.
+     * @param weights indexed list of finite, nonnegative weights.
+     * @return a new distribution with the given weights.
+     * @throws IllegalArgumentException if any weight is negative or not
+     * finite, or the total weight isn't positive and finite.
+     */
+    public static IntProbabilityDistribution of(double... weights) {
+        double totalWeight = 0;
+        for (double weight : weights) {
+            if (!(weight >= 0 && weight <= Double.MAX_VALUE)) {
+                throw new IllegalArgumentException("weight must be finite and nonnegative: " + weight);
+            }
+            totalWeight += weight;
+        }
+        if (!(totalWeight > 0 && totalWeight <= Double.MAX_VALUE)) {
+            throw new IllegalArgumentException("total weight must be positive and finite: " + totalWeight);
+        }
+
+        IntProbabilityDistribution d = new IntProbabilityDistribution(weights.length);
+        long scaled = d.size * SCALE;
+        for (int i = 0; i < d.size; ++i) {
+            d.table[i] = Math.min((long) (weights[i] / totalWeight * scaled), scaled);
+        }
+        d.buildQuantized(i -> weights[i] > 0);
+        return d;
+    }
+
+    /**
+     * Build the exact table if the rational arithmetic can't overflow: each
+     * normalized probability has a denominator dividing Σw and is at most
+     * size, and the sum of two of them is at most 2 · size. Otherwise, build
+     * the quantized table.
+     */
+    private void build(IntToLongFunction weights, long totalWeight) {
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("total weight must be positive");
+        }
+        if (totalWeight <= Integer.MAX_VALUE / (2L * size)) {
+            buildExact(weights, (int) totalWeight);
+        } else {
+            long scaled = size * SCALE;
+            for (int i = 0; i < size; ++i) {
+                table[i] = Longs.multiplyDivide(weights.applyAsLong(i), scaled, totalWeight);
+            }
+            buildQuantized(i -> weights.applyAsLong(i) > 0);
+        }
+    }
+
+    /**
+     * Build the exact rational alias table, and compile it into the packed
+     * table. The "small" and "large" stacks share a single work array,
+     * growing toward each other from either end, and the aliases are kept in
+     * the low 32 bits of the packed table as they are found.
+     */
+    private void buildExact(IntToLongFunction weights, int totalWeight) {
+        int[] stacks = new int[size];
+        int smalls = 0, larges = size;
         for (int i = 0; i < size; ++i) {
             // normalize each int weight, such that the average weight is 1.
-            long p = encode(weights[i] * size, totalWeight);
+            long p = encode((int) weights.applyAsLong(i) * size, totalWeight);
             probabilities[i] = p;
 
             // p < 1 is "small", p ≥ 1 is "large."
             if (numerator(p) < denominator(p)) {
-                smalls = smalls.push(i);
+                stacks[smalls++] = i;
             } else {
-                larges = larges.push(i);
+                stacks[--larges] = i;
             }
         }
 
-        while (!smalls.isEmpty()) {
+        while (smalls != 0) {
             // pop a small and large element from the top of each stack.
-            int small = smalls.top();
-            smalls = smalls.pop();
-            int large = larges.top();
-            larges = larges.pop();
+            int small = stacks[--smalls];
+            int large = stacks[larges++];
 
             // p = p_large - (1 - p_small).
             long p = plus(plus(probabilities[large], probabilities[small]), NEGATIVE_ONE);
 
             // as above, p < 1 is "small", p ≥ 1 is "large."
             if (numerator(p) < denominator(p)) {
-                smalls = smalls.push(large);
+                stacks[smalls++] = large;
             } else {
-                larges = larges.push(large);
+                stacks[--larges] = large;
             }
 
             // set the alias for the small element, and adjust the probability
             // of the large element.
-            aliases[small] = large;
+            table[small] = large;
             probabilities[large] = p;
         }
+
+        // compile the packed table. after the loop above, every probability
+        // is in [0, 1], and those equal to 1 are exactly 1.
+        for (int i = 0; i < size; ++i) {
+            long p = probabilities[i];
+            if (numerator(p) < denominator(p)) {
+                long threshold = ((long) numerator(p) << 32) / denominator(p);
+                table[i] = threshold << 32 | table[i];
+            } else {
+                table[i] = 0xFFFFFFFF00000000L | i;
+            }
+        }
+    }
+
+    /**
+     * Build the quantized alias table, given each weight's share of
+     * size · SCALE, rounded down, in the packed table. The shares are first
+     * adjusted by one unit at a time, cycling through the positive weights,
+     * until they total exactly size · SCALE. Then each share is a long
+     * multiple of 1 / SCALE, so the alias method needs no rational
+     * arithmetic: each bin holds SCALE units, and its threshold is the number
+     * of units it keeps. Until the probabilities are encoded at the end, the
+     * aliases are kept in their place.
+     */
+    private void buildQuantized(IntPredicate positive) {
+        long scaled = size * SCALE, total = 0;
+        for (int i = 0; i < size; ++i) {
+            total += table[i];
+        }
+        for (int i = 0; total != scaled; i = i + 1 == size ? 0 : i + 1) {
+            if (total < scaled && positive.test(i)) {
+                ++table[i];
+                ++total;
+            } else if (total > scaled && table[i] > 0) {
+                --table[i];
+                --total;
+            }
+        }
+
+        int[] stacks = new int[size];
+        int smalls = 0, larges = size;
+        for (int i = 0; i < size; ++i) {
+            if (table[i] < SCALE) {
+                stacks[smalls++] = i;
+            } else {
+                stacks[--larges] = i;
+            }
+        }
+
+        while (smalls != 0) {
+            int small = stacks[--smalls];
+            int large = stacks[larges++];
+
+            // the large element gives up the units the small element lacks.
+            long units = table[large] - (SCALE - table[small]);
+            if (units < SCALE) {
+                stacks[smalls++] = large;
+            } else {
+                stacks[--larges] = large;
+            }
+
+            probabilities[small] = large;
+            table[large] = units;
+        }
+
+        // every element left on the large stack holds exactly SCALE units.
+        // SCALE is a power of two, so each threshold is exact in 32 bits.
+        for (int i = 0; i < size; ++i) {
+            long threshold = table[i];
+            if (threshold < SCALE) {
+                table[i] = threshold << (32 - SCALE_BITS) << 32 | probabilities[i];
+                probabilities[i] = dyadic((int) threshold, SCALE_BITS);
+            } else {
+                probabilities[i] = ONE;
+                table[i] = 0xFFFFFFFF00000000L | i;
+            }
+        }
     }
 
     /**
@@ -99,7 +310,7 @@ public final class IntProbabilityDistribution {
     public int next(Random random) {
         int bin = random.nextInt(size);
         long p = probabilities[bin];
-        return random.nextInt(denominator(p)) < numerator(p) ? bin : aliases[bin];
+        return random.nextInt(denominator(p)) < numerator(p) ? bin : (int) table[bin];
     }
 
     /**
@@ -112,4 +323,199 @@ public final class IntProbabilityDistribution {
     public int next() {
         return next(ThreadLocalRandom.current());
     }
+
+    /**
+     * Return index <em>i</em> with probability <em>w<sub>i</sub> / Σw</em>,
+     * using a given splittable random number generator.
+     * @param random splittable random number generator.
+     * @return a random index.
+     * @see #next(Random)
+     */
+    public int next(SplittableRandom random) {
+        int bin = random.nextInt(size);
+        long p = probabilities[bin];
+        return random.nextInt(denominator(p)) < numerator(p) ? bin : (int) table[bin];
+    }
+
+    /**
+     * Fill part of an array with indices, each of which is <em>i</em> with
+     * probability <em>w<sub>i</sub> / Σw</em>, using a given random number
+     * generator. This is equivalent to calling {@link #next(Random)} for each
+     * element, but the table lookups are hoisted out of the loop.
+     * @param random Java standard random number generator.
+     * @param out array to fill with random indices.
+     * @param offset index of the first element of the array to fill.
+     * @param length number of elements of the array to fill.
+     */
+    public void next(Random random, int[] out, int offset, int length) {
+        int size = this.size;
+        long[] probabilities = this.probabilities, table = this.table;
+        for (int i = offset; i < offset + length; ++i) {
+            int bin = random.nextInt(size);
+            long p = probabilities[bin];
+            out[i] = random.nextInt(denominator(p)) < numerator(p) ? bin : (int) table[bin];
+        }
+    }
+
+    /**
+     * Return a stream of {@code n} random indices, each of which is
+     * <em>i</em> with probability <em>w<sub>i</sub> / Σw</em>. The stream
+     * may be made parallel, in which case each split of the stream draws from
+     * its own {@link SplittableRandom#split() split} of a generator.
+     * <pre>{@code int[] draws = d.samples(1000000).parallel().toArray();}</pre>
+     * @param n number of indices in the stream.
+     * @return a sequential stream of random indices.
+     * @throws IllegalArgumentException if {@code n} is negative.
+     */
+    public IntStream samples(long n) {
+        return samples(n, new SplittableRandom());
+    }
+
+    /**
+     * Return a stream of {@code n} random indices, drawn from the given
+     * splittable random number generator and its splits.
+     * @param n number of indices in the stream.
+     * @param random splittable random number generator, which the stream
+     *               takes ownership of.
+     * @return a sequential stream of random indices.
+     * @throws IllegalArgumentException if {@code n} is negative.
+     * @see #samples(long)
+     */
+    public IntStream samples(long n, SplittableRandom random) {
+        if (n < 0) {
+            throw new IllegalArgumentException("sample count must be nonnegative: " + n);
+        }
+        return StreamSupport.intStream(new Samples(random, 0, n), false);
+    }
+
+    /**
+     * Draw {@code n} random indices in parallel using the common fork-join
+     * pool, and count the number of times each index was drawn. This is much
+     * faster than drawing each index and counting it separately, since each
+     * thread counts into its own array, and the arrays are only summed once
+     * per split.
+     * @param n number of indices to draw.
+     * @return an array of {@code size} counts, totaling {@code n}, in which
+     * element <em>i</em> is the number of times index <em>i</em> was drawn.
+     * @throws IllegalArgumentException if {@code n} is negative.
+     * @see #samples(long)
+     */
+    public long[] sampleCounts(long n) {
+        return sampleCounts(n, new SplittableRandom());
+    }
+
+    /**
+     * Draw {@code n} random indices in parallel from the given splittable
+     * random number generator and its splits, and count the number of times
+     * each index was drawn.
+     * @param n number of indices to draw.
+     * @param random splittable random number generator, which this method
+     *               takes ownership of.
+     * @return an array of {@code size} counts, totaling {@code n}.
+     * @throws IllegalArgumentException if {@code n} is negative.
+     * @see #sampleCounts(long)
+     */
+    public long[] sampleCounts(long n, SplittableRandom random) {
+        return samples(n, random).parallel().collect(
+                () -> new long[size],
+                (counts, index) -> ++counts[index],
+                (lhs, rhs) -> {
+                    for (int i = 0; i < lhs.length; ++i) lhs[i] += rhs[i];
+                });
+    }
+
+    /**
+     * <p>Return index <em>i</em> with probability approximately
+     * <em>w<sub>i</sub> / Σw</em>, using a single 64-bit draw from a given
+     * random number generator. This is typically several times faster than
+     * {@link #next(Random)}, which makes two bounded draws per sample.</p>
+     *
+     * <p>The high 32 bits of the draw choose a bin, and the low 32 bits are
+     * compared to the bin's probability, rounded down to 32 bits. Each bin is
+     * chosen with probability within 2<sup>-32</sup> of 1 / size, and kept
+     * with probability within 2<sup>-32</sup> of the exact probability, so
+     * the total variation distance from the exact distribution is less than
+     * (size + 1) · 2<sup>-32</sup>.</p>
+     * @param random Java standard random number generator.
+     * @return a random index.
+     */
+    public int nextFast(Random random) {
+        return sample(random.nextLong());
+    }
+
+    /**
+     * Return index <em>i</em> with probability approximately
+     * <em>w<sub>i</sub> / Σw</em>, using the current thread's random number
+     * generator.
+     * @return a random index.
+     * @see #nextFast(Random)
+     * @see ThreadLocalRandom
+     */
+    public int nextFast() {
+        return sample(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Map 64 random bits to an index, as described in {@link #nextFast(Random)}.
+     */
+    int sample(long bits) {
+        int bin = (int) (((bits >>> 32) * size) >>> 32);
+        long entry = table[bin];
+        return (bits & 0xFFFFFFFFL) < entry >>> 32 ? bin : (int) entry;
+    }
+
+    /**
+     * Spliterator over a range of samples. Splitting halves the range and
+     * gives the new half its own split of the random number generator, in the
+     * same way as {@link SplittableRandom#ints(long)}.
+     */
+    private final class Samples implements Spliterator.OfInt {
+        private final SplittableRandom random;
+        private long index;
+        private final long fence;
+
+        Samples(SplittableRandom random, long index, long fence) {
+            this.random = random;
+            this.index = index;
+            this.fence = fence;
+        }
+
+        @Override
+        public Samples trySplit() {
+            long mid = (index + fence) >>> 1;
+            if (mid <= index) {
+                return null;
+            }
+            Samples prefix = new Samples(random.split(), index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (index >= fence) {
+                return false;
+            }
+            action.accept(next(random));
+            ++index;
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            for (; index < fence; ++index) {
+                action.accept(next(random));
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
 }
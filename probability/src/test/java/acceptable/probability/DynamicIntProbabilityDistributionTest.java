@@ -0,0 +1,127 @@
+package acceptable.probability;
+
+import org.apache.commons.math3.stat.inference.ChiSquareTest;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DynamicIntProbabilityDistributionTest {
+
+    private final ChiSquareTest chiSquareTest = new ChiSquareTest();
+    private final Random random = new Random(0);
+
+    @Test
+    public void chiSquareTestMustNeverRejectNullHypothesisAfterUpdates() {
+        for (int trial = 0; trial < 100; ++trial) {
+            int size = random.nextInt(18) + 2;
+            long[] weights = new long[size];
+            for (int i = 0; i < size; ++i) {
+                weights[i] = random.nextInt(9) + 1;
+            }
+            DynamicIntProbabilityDistribution d = new DynamicIntProbabilityDistribution(weights);
+
+            // change some weights, keeping each of them positive.
+            for (int update = 0; update < size; ++update) {
+                int index = random.nextInt(size);
+                weights[index] = random.nextInt(9) + 1;
+                d.setWeight(index, weights[index]);
+            }
+
+            long totalWeight = 0;
+            for (long weight : weights) {
+                totalWeight += weight;
+            }
+            assertEquals(totalWeight, d.totalWeight());
+            double[] expected = new double[size];
+            for (int i = 0; i < size; ++i) {
+                assertEquals(weights[i], d.weight(i));
+                expected[i] = (double) weights[i] / totalWeight;
+            }
+
+            long[] observed = new long[size];
+            for (int sample = 0; sample < 1000000; ++sample) {
+                int index = d.next(random);
+                ++observed[index];
+            }
+
+            assertFalse(chiSquareTest.chiSquareTest(expected, observed, 0.01));
+        }
+    }
+
+    @Test
+    public void zeroWeightsMustNeverBeChosen() {
+        DynamicIntProbabilityDistribution d = new DynamicIntProbabilityDistribution(0, 1, 0, 1, 0);
+        d.setWeight(1, 0);
+        d.setWeight(4, 3);
+        for (int sample = 0; sample < 100000; ++sample) {
+            int index = d.next(random);
+            assertNotEquals(0, d.weight(index));
+        }
+    }
+
+    @Test
+    public void concurrentReadersMustSeeConsistentWeights() throws InterruptedException {
+        // the writer moves all the weight around the indices one at a time,
+        // publishing how many moves it has completed. during move m, only
+        // indices m and m + 1 (modulo the size) have nonzero weight, so a
+        // sample taken between observing moves m0 and m1 must be one of the
+        // indices m0 through m1 + 1. a torn read of the tree, which mixes
+        // sums from before and after a move, could choose any index.
+        int size = 13;
+        long[] weights = new long[size];
+        weights[0] = 1;
+        DynamicIntProbabilityDistribution d = new DynamicIntProbabilityDistribution(weights);
+        AtomicLong moves = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (long move = 0; !done.get(); ++move) {
+                int from = (int) (move % size), to = (int) ((move + 1) % size);
+                d.setWeight(to, move + 2);
+                d.setWeight(from, 0);
+                moves.set(move + 1);
+            }
+        });
+        writer.start();
+        try {
+            int checked = 0;
+            for (int sample = 0; sample < 1000000; ++sample) {
+                long before = moves.get();
+                int index = d.next(random);
+                long after = moves.get();
+                if (after + 1 - before >= size - 1) continue;
+                long offset = Math.floorMod(index - before, (long) size);
+                assertTrue("index " + index + " between moves " + before + " and " + after,
+                        offset <= after + 1 - before);
+                ++checked;
+            }
+            assertTrue(checked > 0);
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWeightMustBeRejected() {
+        new DynamicIntProbabilityDistribution(1, 2).setWeight(0, -1);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void overflowingTotalWeightMustBeRejected() {
+        new DynamicIntProbabilityDistribution(Long.MAX_VALUE, 0).setWeight(1, 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void zeroTotalWeightMustBeRejected() {
+        DynamicIntProbabilityDistribution d = new DynamicIntProbabilityDistribution(1, 0);
+        d.setWeight(0, 0);
+        d.next(random);
+    }
+}
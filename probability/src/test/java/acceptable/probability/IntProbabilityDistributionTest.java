@@ -4,9 +4,13 @@ package acceptable.probability;
 import org.apache.commons.math3.stat.inference.ChiSquareTest;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.SplittableRandom;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 // TODO implement quickcheck clone
 public class IntProbabilityDistributionTest {
@@ -40,4 +44,191 @@ public class IntProbabilityDistributionTest {
             assertFalse(chiSquareTest.chiSquareTest(expected, observed, 0.01));
         }
     }
+
+    @Test
+    public void fastChiSquareTestMustNeverRejectNullHypothesis() {
+        for (int trial = 0; trial < 100; ++trial) {
+            int size = random.nextInt(18) + 2;
+            int weights[] = new int[size];
+            int totalWeight = 0;
+            for (int i = 0; i < size; ++i) {
+                int weight = random.nextInt(10);
+                weights[i] = weight;
+                totalWeight += weight;
+            }
+            if (totalWeight == 0) {
+                weights[0] = totalWeight = 1;
+            }
+            double[] expected = new double[size];
+            for (int i = 0; i < size; ++i) {
+                expected[i] = (double) weights[i] / totalWeight;
+            }
+
+            IntProbabilityDistribution d = new IntProbabilityDistribution(weights);
+            long[] observed = new long[size];
+            for (int sample = 0; sample < 1000000; ++sample) {
+                int index = d.nextFast(random);
+                assertFalse(weights[index] == 0);
+                ++observed[index];
+            }
+
+            // the test rejects zero expectations, so leave those indices out.
+            int nonzero = 0;
+            for (int i = 0; i < size; ++i) {
+                if (weights[i] != 0) {
+                    expected[nonzero] = expected[i];
+                    observed[nonzero] = observed[i];
+                    ++nonzero;
+                }
+            }
+            if (nonzero < 2) continue;
+            assertFalse(chiSquareTest.chiSquareTest(
+                    Arrays.copyOf(expected, nonzero), Arrays.copyOf(observed, nonzero), 0.001));
+        }
+    }
+
+    @Test
+    public void fastPathMustSplitDrawIntoBinAndThreshold() {
+        // normalized probabilities are 1/2, 3/2: bin 0 keeps itself half the
+        // time and otherwise aliases to 1, and bin 1 always keeps itself.
+        IntProbabilityDistribution d = new IntProbabilityDistribution(1, 3);
+        assertEquals(0, d.sample(0x00000000_00000000L));
+        assertEquals(0, d.sample(0x7FFFFFFF_7FFFFFFFL));
+        assertEquals(1, d.sample(0x7FFFFFFF_80000000L));
+        assertEquals(1, d.sample(0x80000000_00000000L));
+        assertEquals(1, d.sample(0xFFFFFFFF_FFFFFFFFL));
+    }
+
+    @Test
+    public void bulkNextMustFillOnlyTheGivenRange() {
+        IntProbabilityDistribution d = new IntProbabilityDistribution(0, 1, 0);
+        int[] out = new int[10];
+        Arrays.fill(out, -1);
+        d.next(random, out, 2, 6);
+        for (int i = 0; i < out.length; ++i) {
+            assertEquals(i >= 2 && i < 8 ? 1 : -1, out[i]);
+        }
+    }
+
+    @Test
+    public void parallelSamplesMustHaveRequestedCount() {
+        IntProbabilityDistribution d = new IntProbabilityDistribution(2, 3, 5);
+        assertEquals(0, d.samples(0).count());
+        assertEquals(100003, d.samples(100003).parallel().count());
+        assertTrue(d.samples(100003, new SplittableRandom(0)).parallel()
+                .allMatch(index -> index >= 0 && index < 3));
+    }
+
+    @Test
+    public void sampleCountsChiSquareTestMustNeverRejectNullHypothesis() {
+        SplittableRandom splittable = new SplittableRandom(0);
+        for (int trial = 0; trial < 20; ++trial) {
+            int size = random.nextInt(18) + 2;
+            int weights[] = new int[size];
+            int totalWeight = 0;
+            for (int i = 0; i < size; ++i) {
+                int weight = random.nextInt(9) + 1;
+                weights[i] = weight;
+                totalWeight += weight;
+            }
+            double[] expected = new double[size];
+            for (int i = 0; i < size; ++i) {
+                expected[i] = (double) weights[i] / totalWeight;
+            }
+
+            IntProbabilityDistribution d = new IntProbabilityDistribution(weights);
+            long[] observed = d.sampleCounts(1000000, splittable.split());
+            assertEquals(size, observed.length);
+            assertEquals(1000000, Arrays.stream(observed).sum());
+            assertFalse(chiSquareTest.chiSquareTest(expected, observed, 0.001));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSampleCountMustBeRejected() {
+        new IntProbabilityDistribution(1, 1).samples(-1);
+    }
+
+    @Test
+    public void longWeightsMustMatchIntWeightsWhenExact() {
+        for (int trial = 0; trial < 100; ++trial) {
+            int size = random.nextInt(18) + 2;
+            int[] weights = new int[size];
+            long[] longWeights = new long[size];
+            for (int i = 0; i < size; ++i) {
+                longWeights[i] = weights[i] = random.nextInt(10) + 1;
+            }
+            IntProbabilityDistribution expected = new IntProbabilityDistribution(weights);
+            IntProbabilityDistribution actual = IntProbabilityDistribution.of(longWeights);
+            for (int sample = 0; sample < 1000; ++sample) {
+                long bits = random.nextLong();
+                assertEquals(expected.sample(bits), actual.sample(bits));
+            }
+        }
+    }
+
+    @Test
+    public void quantizedTableMustMatchExactTableForDyadicShares() {
+        // as in fastPathMustSplitDrawIntoBinAndThreshold, but far too large
+        // for exact rational arithmetic.
+        IntProbabilityDistribution d = IntProbabilityDistribution.of(1L << 40, 3L << 40);
+        assertEquals(0, d.sample(0x00000000_00000000L));
+        assertEquals(0, d.sample(0x7FFFFFFF_7FFFFFFFL));
+        assertEquals(1, d.sample(0x7FFFFFFF_80000000L));
+        assertEquals(1, d.sample(0x80000000_00000000L));
+        assertEquals(1, d.sample(0xFFFFFFFF_FFFFFFFFL));
+    }
+
+    @Test
+    public void quantizedChiSquareTestMustNeverRejectNullHypothesis() {
+        for (int trial = 0; trial < 30; ++trial) {
+            int size = random.nextInt(18) + 2;
+            int[] intWeights = new int[size];
+            long[] longWeights = new long[size];
+            double[] doubleWeights = new double[size];
+            double[] expected = new double[size];
+            for (int i = 0; i < size; ++i) {
+                int weight = random.nextInt(9) + 1;
+                intWeights[i] = weight << 27;
+                longWeights[i] = (long) weight << 55;
+                doubleWeights[i] = weight * 1e-300;
+                expected[i] = weight;
+            }
+
+            IntProbabilityDistribution[] ds = {
+                    new IntProbabilityDistribution(intWeights),
+                    IntProbabilityDistribution.of(longWeights),
+                    IntProbabilityDistribution.of(doubleWeights)};
+            for (IntProbabilityDistribution d : ds) {
+                long[] observed = new long[size];
+                for (int sample = 0; sample < 300000; ++sample) {
+                    ++observed[d.next(random)];
+                    ++observed[d.nextFast(random)];
+                }
+                assertFalse(chiSquareTest.chiSquareTest(expected, observed, 0.001));
+            }
+        }
+    }
+
+    @Test
+    public void quantizedZeroWeightsMustNeverBeChosen() {
+        IntProbabilityDistribution d = IntProbabilityDistribution.of(
+                0, Long.MAX_VALUE / 3, 0, 1, Long.MAX_VALUE / 3, 0);
+        for (int sample = 0; sample < 100000; ++sample) {
+            int index = d.nextFast(random);
+            assertTrue(index == 1 || index == 3 || index == 4);
+            index = d.next(random);
+            assertTrue(index == 1 || index == 3 || index == 4);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWeightMustBeRejected() {
+        IntProbabilityDistribution.of(1L, -1L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroTotalWeightMustBeRejected() {
+        IntProbabilityDistribution.of(0.0, 0.0);
+    }
 }
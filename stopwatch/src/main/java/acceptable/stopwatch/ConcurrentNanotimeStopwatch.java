@@ -0,0 +1,260 @@
+package acceptable.stopwatch;
+
+import acceptable.stopwatch.NanotimeStopwatch.Inactive;
+import acceptable.stopwatch.NanotimeStopwatch.Overflow;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>ConcurrentNanotimeStopwatch is a thread-safe variant of
+ * {@link NanotimeStopwatch}, with the same hashing of timers by stop time and
+ * the same API. Any number of threads may {@link #start(long) start} and
+ * {@link #stop(int) stop} timers concurrently, without locking, while a single
+ * thread at a time calls {@link #tick(int[]) tick}.</p>
+ *
+ * <p>Each slot has an atomic state: free, claimed by a thread which is
+ * starting a timer in it, or active. Starting a timer first reserves one unit
+ * of capacity, which guarantees that a free slot exists, and then claims the
+ * first free slot found by linear probing with a compare-and-set. Stopping or
+ * expiring a timer changes its slot from active to free with a
+ * compare-and-set, so exactly one of a concurrent stop and tick succeeds, and
+ * only then is the capacity released. Each state also carries a generation,
+ * which is incremented whenever its slot is freed, so that a tick can never
+ * expire a timer that was started in a slot after the tick examined it.</p>
+ *
+ * <p>Note that {@link #stop(int) stopping} a timer by index races with its
+ * expiry: if the timer expires and another thread starts a new timer in the
+ * same slot before the stop, the stop kills the new timer instead. Timers
+ * which may be stopped after they could have expired should instead be
+ * {@link #startHandle(long) started} with a handle, which combines the index
+ * with the slot's generation, so that {@link #stopHandle(long) stopping} a
+ * stale handle fails rather than stopping some other timer. Generations start
+ * at 1, so a handle of zero is never valid.</p>
+ *
+ * <p>As with {@link NanotimeStopwatch}, the stopwatch may be given a clock
+ * other than {@link System#nanoTime()}.</p>
+ */
+public final class ConcurrentNanotimeStopwatch {
+    private static final int FREE = 0, CLAIMED = 1, ACTIVE = 2, STATUS = 3;
+    private static final int GENERATION = 4;
+
+    /**
+     * The frequency, in nanoseconds, at which {@link #tick(int[]) tick} is
+     * called.
+     */
+    public final long resolution;
+
+    /**
+     * The maximum number of concurrently active timers.
+     */
+    public final int capacity;
+
+    private final LongSupplier clock;
+    private final AtomicIntegerArray states;
+    private final long[] startTimes;
+    private final long[] stopTimes;
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    // only accessed by the ticking thread
+    private int cursor;
+
+    /**
+     * Construct a ConcurrentNanotimeStopwatch with a given resolution and
+     * capacity. The user is responsible for calling {@link #tick(int[]) tick}
+     * at approximately the rate specified by the resolution.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     */
+    public ConcurrentNanotimeStopwatch(long resolution, int capacity) {
+        this(resolution, capacity, System::nanoTime);
+    }
+
+    /**
+     * Construct a ConcurrentNanotimeStopwatch with a given resolution,
+     * capacity and clock, which must be safe to read from any thread.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     * @param clock The source of the current time, in nanoseconds, with the
+     *              same semantics as {@link System#nanoTime()}.
+     */
+    public ConcurrentNanotimeStopwatch(long resolution, int capacity, LongSupplier clock) {
+        this.resolution = resolution;
+        this.capacity = capacity;
+        this.clock = clock;
+        states = new AtomicIntegerArray(capacity);
+        for (int index = 0; index < capacity; ++index) {
+            states.set(index, FREE + GENERATION);
+        }
+        startTimes = new long[capacity];
+        stopTimes = new long[capacity];
+        cursor = nanotimeToIndex(clock.getAsLong());
+    }
+
+    /**
+     * Return the number of active timers, including any which are in the
+     * process of being started.
+     * @return The number of active timers.
+     */
+    public int activeCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Start a new timer with a given duration. This method may be called
+     * concurrently from any number of threads.
+     * @param duration The duration, in nanoseconds, of the timer.
+     * @return The index of the timer.
+     * @throws Overflow Thrown if the number of active timers is at
+     * {@link #capacity}.
+     * @see NanotimeStopwatch#start(long)
+     */
+    public int start(long duration) throws Overflow {
+        return index(activate(duration));
+    }
+
+    /**
+     * Start a new timer with a given duration, and return a handle which
+     * identifies it to {@link #stopHandle(long) stopHandle}. This method may be
+     * called concurrently from any number of threads.
+     * @param duration The duration, in nanoseconds, of the timer.
+     * @return The handle of the timer, from which its {@link #index(long)
+     * index} may be extracted.
+     * @throws Overflow Thrown if the number of active timers is at
+     * {@link #capacity}.
+     */
+    public long startHandle(long duration) throws Overflow {
+        return activate(duration);
+    }
+
+    /**
+     * Activate a timer in the first free slot, and return its handle.
+     */
+    private long activate(long duration) {
+        // reserve capacity first, so that probing below must find a free slot
+        int count;
+        do {
+            count = activeCount.get();
+            if (count == capacity)
+                throw new Overflow();
+        } while (!activeCount.compareAndSet(count, count + 1));
+
+        long startTime = clock.getAsLong(), stopTime = startTime + duration;
+        int index = nanotimeToIndex(stopTime);
+        int state = states.get(index);
+        while ((state & STATUS) != FREE ||
+                !states.compareAndSet(index, state, state | CLAIMED)) {
+            index = (index + 1) % capacity;
+            state = states.get(index);
+        }
+
+        // the volatile write of the active state publishes the times to the
+        // ticking thread
+        startTimes[index] = startTime;
+        stopTimes[index] = stopTime;
+        states.set(index, state | ACTIVE);
+        return (long) state << 32 | index;
+    }
+
+    /**
+     * Stop an active timer, and return the time elapsed since it was
+     * {@link #start(long) started}. This method may be called concurrently
+     * from any number of threads, but only by the owner of the timer.
+     * @param index The index of the timer.
+     * @return The time, in nanoseconds, elapsed since the timer was started.
+     * @throws Inactive Thrown if the index references an inactive timer,
+     * including one which has concurrently expired.
+     * @see NanotimeStopwatch#stop(int)
+     */
+    public long stop(int index) throws Inactive {
+        // read the start time before freeing the slot for reuse
+        int state = states.get(index);
+        long startTime = startTimes[index];
+        if ((state & STATUS) != ACTIVE || !states.compareAndSet(index, state, free(state)))
+            throw new Inactive();
+
+        activeCount.decrementAndGet();
+        return clock.getAsLong() - startTime;
+    }
+
+    /**
+     * Stop an active timer identified by a handle, and return the time
+     * elapsed since it was {@link #startHandle(long) started}. This method may
+     * be called concurrently from any number of threads.
+     * @param handle The handle of the timer.
+     * @return The time, in nanoseconds, elapsed since the timer was started.
+     * @throws Inactive Thrown if the timer has already been stopped or has
+     * expired, even if its index has since been reused by another timer.
+     */
+    public long stopHandle(long handle) throws Inactive {
+        int index = index(handle);
+        int state = states.get(index);
+        long startTime = startTimes[index];
+        if (state != ((int) (handle >>> 32) | ACTIVE) ||
+                !states.compareAndSet(index, state, free(state)))
+            throw new Inactive();
+
+        activeCount.decrementAndGet();
+        return clock.getAsLong() - startTime;
+    }
+
+    /**
+     * Return the index of the timer identified by a handle.
+     * @param handle The handle of a timer.
+     * @return The index of the timer.
+     */
+    public static int index(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Return the current time according to this stopwatch's clock.
+     * @return The current time, in nanoseconds.
+     */
+    public long nanoTime() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Deactivate and return all timers that have expired since the previous
+     * tick. This method must not be called concurrently with itself.
+     * @param expired Buffer into which all expired timers will be copied.
+     * @return The number of expired timers.
+     * @see NanotimeStopwatch#tick(int[])
+     */
+    public int tick(int[] expired) {
+        long now = clock.getAsLong();
+        int length = 0;
+        // scan up to and including the current slot, and leave the cursor
+        // there, since timers in it may not have expired yet
+        int endCursor = nanotimeToIndex(now);
+        while (true) {
+            int state = states.get(cursor);
+            if ((state & STATUS) == ACTIVE &&
+                    stopTimes[cursor] - now < 0 &&
+                    states.compareAndSet(cursor, state, free(state))) {
+                activeCount.decrementAndGet();
+                expired[length++] = cursor;
+            }
+            if (cursor == endCursor) break;
+            cursor = (cursor + 1) % capacity;
+        }
+        return length;
+    }
+
+    /**
+     * Return the free state following an active state, with the next
+     * generation, skipping zero when the generation wraps around.
+     */
+    private static int free(int state) {
+        int next = (state & ~STATUS) + GENERATION;
+        return next == 0 ? GENERATION : next;
+    }
+
+    private int nanotimeToIndex(long nanotime) {
+        return (int) Math.floorMod(Math.floorDiv(nanotime, resolution), (long) capacity);
+    }
+}
@@ -0,0 +1,294 @@
+package acceptable.stopwatch;
+
+import acceptable.stopwatch.NanotimeStopwatch.Inactive;
+import acceptable.stopwatch.NanotimeStopwatch.Overflow;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>HierarchicalStopwatch is a variant of {@link NanotimeStopwatch} based on
+ * the hierarchical timing wheels of Varghese &amp; Lauck, for workloads which
+ * mix short and very long timers. Rather than hashing every timer into a
+ * single wheel, where long timers are revisited on every rotation, timers are
+ * kept in a stack of wheels of 64 buckets each: the lowest wheel has one bucket
+ * per tick, and each higher wheel has buckets 64 times as coarse as the one
+ * below it. A timer is placed in the lowest wheel that can distinguish its
+ * stop time from the current tick, and whenever a wheel completes a rotation,
+ * the next bucket of the wheel above it is cascaded down. Each timer is
+ * therefore moved at most once per wheel, and a tick only visits the timers
+ * that actually expire, plus those being cascaded. Which buckets of each
+ * wheel hold timers is recorded in a bitmap, so a tick after a long pause
+ * jumps directly from one occupied bucket to the next, rather than stepping
+ * through every elapsed tick.</p>
+ *
+ * <p>The API is the same as that of {@link NanotimeStopwatch}: timers are
+ * identified by index, {@link #start(long) started} with a duration, and
+ * either explicitly {@link #stop(int) stopped} or expired by some
+ * {@link #tick(int[]) tick} after that duration elapses. Unlike
+ * {@link NanotimeStopwatch}, indices are not derived from stop times, and
+ * stopping a timer takes constant time regardless of collisions. It may
+ * likewise be given a clock other than {@link System#nanoTime()}.</p>
+ *
+ * <p><strong>Note that this implementation is not synchronized.</strong></p>
+ */
+public final class HierarchicalStopwatch {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEELS = (Long.SIZE + WHEEL_BITS - 1) / WHEEL_BITS;
+    private static final int NONE = -1;
+
+    /**
+     * The frequency, in nanoseconds, at which {@link #tick(int[]) tick} is
+     * called, and the width of each bucket in the lowest wheel.
+     */
+    public final long resolution;
+
+    /**
+     * The maximum number of concurrently active timers.
+     */
+    public final int capacity;
+
+    private final LongSupplier clock;
+    private final long origin;
+    private final long[] startTimes;
+    private final long[] stopTimes;
+
+    // timers in each bucket form a doubly linked list through next and prev;
+    // inactive timers form a singly linked free list through next
+    private final int[] heads = new int[WHEELS * WHEEL_SIZE];
+    private final int[] next;
+    private final int[] prev;
+    private final int[] buckets;
+    private final long[] occupied = new long[WHEELS];
+    private int free;
+
+    // every tick before the current one has been completely processed
+    private long current = 0;
+
+    /**
+     * Construct a HierarchicalStopwatch with a given resolution and capacity.
+     * The user is responsible for calling {@link #tick(int[]) tick} at
+     * approximately the rate specified by the resolution.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     */
+    public HierarchicalStopwatch(long resolution, int capacity) {
+        this(resolution, capacity, System::nanoTime);
+    }
+
+    /**
+     * Construct a HierarchicalStopwatch with a given resolution, capacity and
+     * clock.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     * @param clock The source of the current time, in nanoseconds, with the
+     *              same semantics as {@link System#nanoTime()}.
+     */
+    public HierarchicalStopwatch(long resolution, int capacity, LongSupplier clock) {
+        this.resolution = resolution;
+        this.capacity = capacity;
+        this.clock = clock;
+        origin = clock.getAsLong();
+        startTimes = new long[capacity];
+        stopTimes = new long[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        buckets = new int[capacity];
+        Arrays.fill(heads, NONE);
+        Arrays.fill(buckets, NONE);
+        for (int index = 0; index < capacity; ++index) {
+            next[index] = index + 1 < capacity ? index + 1 : NONE;
+        }
+        free = capacity > 0 ? 0 : NONE;
+    }
+
+    /**
+     * Start a new timer with a given duration. If the timer isn't explicitly
+     * {@link #stop(int) stopped}, then at some {@link #tick(int[]) tick} after
+     * the duration elapses the timer will expire.
+     * @param duration The duration, in nanoseconds, of the timer, which must
+     *                 not be negative. Durations reaching past the last
+     *                 time the clock can represent relative to this
+     *                 stopwatch's construction are cut short there.
+     * @return The index of the timer; the user is responsible for externally
+     * mapping timer indices to whatever is being timed (such as requests).
+     * @throws Overflow Thrown if the number of active timers is at
+     * {@link #capacity}.
+     * @throws IllegalArgumentException Thrown if the duration is negative.
+     */
+    public int start(long duration) throws Overflow {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative: " + duration);
+        }
+        if (free == NONE)
+            throw new Overflow();
+
+        int index = free;
+        free = next[index];
+        long startTime = clock.getAsLong();
+        startTimes[index] = startTime;
+        // saturate rather than wrap, so that huge durations don't expire
+        // immediately
+        long elapsed = startTime - origin;
+        stopTimes[index] = origin + elapsed + Math.min(duration, Long.MAX_VALUE - elapsed);
+        schedule(index);
+        return index;
+    }
+
+    /**
+     * Stop an active timer, and return the time elapsed since it was
+     * {@link #start(long) started}.
+     * @param index The index of the timer.
+     * @return The time, in nanoseconds, elapsed since the timer was started.
+     * @throws Inactive Thrown if the index references an inactive timer.
+     * @see NanotimeStopwatch#stop(int)
+     */
+    public long stop(int index) throws Inactive {
+        if (buckets[index] == NONE)
+            throw new Inactive();
+
+        unlink(index);
+        release(index);
+        return clock.getAsLong() - startTimes[index];
+    }
+
+    /**
+     * Deactivate and return all timers that have expired since the previous
+     * tick, copying their indices to elements <code>[0, length)</code> of a
+     * buffer, which should be sized equal to the {@link #capacity} of this
+     * stopwatch to be completely safe.
+     * @param expired Buffer into which all expired timers will be copied.
+     * @return The number of expired timers.
+     * @see NanotimeStopwatch#tick(int[])
+     */
+    public int tick(int[] expired) {
+        long now = clock.getAsLong();
+        long target = nanotimeToTick(now);
+        int length = 0;
+
+        // every timer in the lowest bucket of a tick before the current one
+        // has expired, so completely process each of those ticks in turn,
+        // skipping ticks at which no bucket is due.
+        while (current < target) {
+            cascade();
+            int bucket = (int) current & WHEEL_MASK;
+            for (int index = heads[bucket]; index != NONE; index = heads[bucket]) {
+                unlink(index);
+                release(index);
+                expired[length++] = index;
+            }
+            current = Math.min(nextDue(), target);
+        }
+
+        // timers in the current tick's bucket may or may not have expired
+        // yet, and are left in place until they do.
+        cascade();
+        int bucket = (int) current & WHEEL_MASK;
+        for (int index = heads[bucket], following; index != NONE; index = following) {
+            following = next[index];
+            if (stopTimes[index] - now < 0) {
+                unlink(index);
+                release(index);
+                expired[length++] = index;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Return the first tick after the current one at which an occupied bucket
+     * is due: either to expire, in the lowest wheel, or to be cascaded. Every
+     * timer in a higher wheel is in a bucket after the current tick's bucket
+     * of that wheel, within the current rotation of the wheel above, so the
+     * lowest wheel with any such bucket has the earliest one.
+     * @return the tick, or {@link Long#MAX_VALUE} if no bucket is occupied
+     */
+    private long nextDue() {
+        for (int wheel = 0; wheel < WHEELS; ++wheel) {
+            int shift = WHEEL_BITS * wheel;
+            int digit = (int) (current >>> shift) & WHEEL_MASK;
+            long later = occupied[wheel] & (-2L << digit);
+            if (later != 0) {
+                int above = shift + WHEEL_BITS;
+                long rotation = above < Long.SIZE ? current >>> above << above : 0;
+                return rotation | (long) Long.numberOfTrailingZeros(later) << shift;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * If the current tick begins a new rotation of one or more wheels, cascade
+     * the current bucket of each wheel above them down to the lower wheels,
+     * starting from the highest.
+     */
+    private void cascade() {
+        int wheel = 0;
+        while (wheel + 1 < WHEELS &&
+                (current & ((1L << (WHEEL_BITS * (wheel + 1))) - 1)) == 0) {
+            ++wheel;
+        }
+        for (; wheel > 0; --wheel) {
+            int bucket = wheel * WHEEL_SIZE +
+                    ((int) (current >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+            int index = heads[bucket];
+            heads[bucket] = NONE;
+            occupied[wheel] &= ~(1L << bucket);
+            while (index != NONE) {
+                int following = next[index];
+                schedule(index);
+                index = following;
+            }
+        }
+    }
+
+    /**
+     * Link a timer into the bucket of the lowest wheel which distinguishes its
+     * stop tick from the current tick; overdue timers go in the current
+     * tick's bucket.
+     */
+    private void schedule(int index) {
+        long tick = nanotimeToTick(stopTimes[index]);
+        int bucket;
+        if (tick <= current) {
+            bucket = (int) current & WHEEL_MASK;
+        } else {
+            int wheel = (Long.SIZE - 1 - Long.numberOfLeadingZeros(tick ^ current)) / WHEEL_BITS;
+            bucket = wheel * WHEEL_SIZE +
+                    ((int) (tick >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+        }
+        int head = heads[bucket];
+        next[index] = head;
+        prev[index] = NONE;
+        if (head != NONE) prev[head] = index;
+        heads[bucket] = index;
+        buckets[index] = bucket;
+        occupied[bucket >>> WHEEL_BITS] |= 1L << bucket;
+    }
+
+    private void unlink(int index) {
+        int before = prev[index], after = next[index];
+        if (before == NONE) {
+            int bucket = buckets[index];
+            heads[bucket] = after;
+            if (after == NONE) occupied[bucket >>> WHEEL_BITS] &= ~(1L << bucket);
+        } else {
+            next[before] = after;
+        }
+        if (after != NONE) prev[after] = before;
+    }
+
+    private void release(int index) {
+        buckets[index] = NONE;
+        next[index] = free;
+        free = index;
+    }
+
+    private long nanotimeToTick(long nanotime) {
+        return Math.floorDiv(nanotime - origin, resolution);
+    }
+}
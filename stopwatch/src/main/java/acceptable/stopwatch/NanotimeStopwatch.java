@@ -1,5 +1,8 @@
 package acceptable.stopwatch;
 
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
 /**
  * <p>NanotimeStopwatch is an approximate timer in constant space, based loosely
  * on Varghese &amp; Lauck, "Hashed and Hierarchical Timing Wheels: Efficient
@@ -11,10 +14,34 @@ package acceptable.stopwatch;
  * {@link #stop(int) stopped}, then at some {@link #tick(int[]) tick} after that
  * duration elapses the timer will expire.</p>
  *
+ * <p>Alternatively, a timer may be {@link #start(long, long) started} with a
+ * <code>long</code> tag, such as a request id, which {@link #tick(int[], long[])
+ * tick} hands back when the timer expires, so that the user needs no map from
+ * indices to requests. Such a timer is identified by a handle, which combines
+ * its index with a generation that changes whenever the index is reused, so
+ * that {@link #stopHandle(long) stopping} a stale handle can never stop some
+ * other timer. Generations start at 1, so a handle of zero is never
+ * valid.</p>
+ *
  * <p>A stopwatch has a "resolution," which should be set to approximately how
  * frequently the user intends to call {@link #tick(int[]) tick}. The resolution
  * affects how timers are hashed internally, and roughly determines how many
- * active timers will be checked for expiration on each tick.</p>
+ * active timers will be checked for expiration on each tick. Which slots hold
+ * active timers is recorded in a bitmap, so a tick skips empty slots 64 at a
+ * time, and only the active ones are checked.</p>
+ *
+ * <p>By default, a stopwatch reads {@link System#nanoTime()} whenever a timer is
+ * started or stopped and at each tick. It may instead be given any clock with
+ * the same semantics, such as a time cached once per iteration of an event
+ * loop, or a simulated time for deterministic tests. Timers may also be
+ * {@link #start(long[], int[]) started in batches}, which read the clock only
+ * once.</p>
+ *
+ * <p>An active timer may be {@link #reschedule(int, long) rescheduled}, or
+ * {@link #touch(int) touched} to restart its duration, as for an idle timeout
+ * which is reset on every read. This updates the timer's stop time in place
+ * whenever its slot is still where a newly started timer would be placed, and
+ * otherwise moves it to a new index.</p>
  *
  * <p><strong>Note that this implementation is not synchronized.</strong></p>
  */
@@ -31,11 +58,15 @@ public final class NanotimeStopwatch {
      */
     public final int capacity;
 
-    private final boolean[] actives;
+    private final LongSupplier clock;
+    private final long[] actives;
     private final long[] startTimes;
     private final long[] stopTimes;
+    private final long[] durations;
+    private final long[] tags;
+    private final int[] generations;
 
-    private int cursor = nanotimeToIndex(System.nanoTime());
+    private int cursor;
     private int activeCount = 0;
 
     /**
@@ -51,6 +82,24 @@ public final class NanotimeStopwatch {
      */
     public static final class Inactive extends RuntimeException {}
 
+    /**
+     * A receiver of expired timers, notified by
+     * {@link #tick(int[], Expiry) tick} as each one expires.
+     */
+    @FunctionalInterface
+    public interface Expiry {
+        /**
+         * Handle an expired timer. The receiver must not start, stop or
+         * reschedule timers of the stopwatch being ticked.
+         * @param index The index of the expired timer.
+         * @param tag The tag of the expired timer, or zero if it was started
+         *            without one.
+         * @param elapsed The time, in nanoseconds, elapsed since the timer
+         *                was started.
+         */
+        void expired(int index, long tag, long elapsed);
+    }
+
     /**
      * Construct a NanotimeStopwatch with a given resolution and capacity. The
      * user is responsible for calling {@link #tick(int[]) tick} at
@@ -60,44 +109,179 @@ public final class NanotimeStopwatch {
      * @param capacity The maximum number of concurrently active timers.
      */
     public NanotimeStopwatch(long resolution, int capacity) {
+        this(resolution, capacity, System::nanoTime);
+    }
+
+    /**
+     * Construct a NanotimeStopwatch with a given resolution, capacity and
+     * clock.
+     * @param resolution The frequency, in nanoseconds, at which
+     *                   {@link #tick(int[]) tick} is called.
+     * @param capacity The maximum number of concurrently active timers.
+     * @param clock The source of the current time, in nanoseconds, with the
+     *              same semantics as {@link System#nanoTime()}.
+     */
+    public NanotimeStopwatch(long resolution, int capacity, LongSupplier clock) {
         this.resolution = resolution;
         this.capacity = capacity;
+        this.clock = clock;
         startTimes = new long[capacity];
         stopTimes = new long[capacity];
-        actives = new boolean[capacity];
+        durations = new long[capacity];
+        actives = new long[(capacity + 63) >>> 6];
+        tags = new long[capacity];
+        generations = new int[capacity];
+        Arrays.fill(generations, 1);
+        cursor = nanotimeToIndex(clock.getAsLong());
     }
 
     /**
      * Start a new timer with a given duration. If the timer isn't explicitly
      * {@link #stop(int) stopped}, then at some {@link #tick(int[]) tick} after
      * the duration elapses the timer will expire.
-     * @param duration The duration, in nanoseconds, of the timer.
+     * @param duration The duration, in nanoseconds, of the timer, which must
+     *                 not be negative.
      * @return The index of the timer; the user is responsible for externally
      * mapping timer indices to whatever is being timed (such as requests).
      * @throws Overflow Thrown if the number of active timers is at
      * {@link #capacity}.
+     * @throws IllegalArgumentException Thrown if the duration is negative.
      */
     public int start(long duration) throws Overflow {
-        // prevent the infinite loop that would occur below if full
+        checkDuration(duration);
         if (activeCount == capacity)
             throw new Overflow();
+        return activate(clock.getAsLong(), duration, 0L);
+    }
 
+    /**
+     * Start a batch of new timers with given durations, reading the clock
+     * only once. Either every timer is started, or none are.
+     * @param durations The durations, in nanoseconds, of the timers, which
+     *                  must not be negative.
+     * @param indices Buffer into which the index of each timer will be copied,
+     *                at the same position as its duration, which must be at
+     *                least as long as the durations.
+     * @throws Overflow Thrown if starting every timer would exceed the
+     * {@link #capacity}.
+     * @throws IllegalArgumentException Thrown if the buffer is too short or a
+     * duration is negative, in which case no timer is started.
+     * @see #start(long)
+     */
+    public void start(long[] durations, int[] indices) throws Overflow {
+        if (indices.length < durations.length) {
+            throw new IllegalArgumentException(
+                    "indices must be at least as long as durations: " + indices.length);
+        }
+        for (long duration : durations) {
+            checkDuration(duration);
+        }
+        if (durations.length > capacity - activeCount)
+            throw new Overflow();
+        long startTime = clock.getAsLong();
+        for (int i = 0; i < durations.length; ++i) {
+            indices[i] = activate(startTime, durations[i], 0L);
+        }
+    }
+
+    /**
+     * Start a new timer with a given duration, tagged with a value which is
+     * returned by {@link #tick(int[], long[]) tick} if the timer expires.
+     * @param duration The duration, in nanoseconds, of the timer, which must
+     *                 not be negative.
+     * @param tag An arbitrary value identifying whatever is being timed.
+     * @return The handle of the timer, which identifies it to
+     * {@link #stopHandle(long) stopHandle}, and from which its
+     * {@link #index(long) index} may be extracted.
+     * @throws Overflow Thrown if the number of active timers is at
+     * {@link #capacity}.
+     * @throws IllegalArgumentException Thrown if the duration is negative.
+     */
+    public long start(long duration, long tag) throws Overflow {
+        checkDuration(duration);
+        if (activeCount == capacity)
+            throw new Overflow();
+        return handle(activate(clock.getAsLong(), duration, tag));
+    }
+
+    private static void checkDuration(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative: " + duration);
+        }
+    }
+
+    /**
+     * Activate a timer in the next available slot. The caller must first
+     * ensure that this stopwatch isn't full, to prevent probing forever.
+     */
+    private int activate(long startTime, long duration, long tag) {
         // record the start and stop times, and find the next available index
         // (using linear probing) that doesn't reference an active timer
-        long startTime = System.nanoTime(), stopTime = startTime + duration;
-        int index = nanotimeToIndex(stopTime);
-        while (actives[index]) {
-            index = (index + 1) % capacity;
-        }
+        long stopTime = startTime + duration;
+        int index = nextInactive(nanotimeToIndex(stopTime));
 
         // activate the timer and return its index
-        actives[index] = true;
+        actives[index >>> 6] |= 1L << index;
         startTimes[index] = startTime;
         stopTimes[index] = stopTime;
+        durations[index] = duration;
+        tags[index] = tag;
         ++activeCount;
         return index;
     }
 
+    /**
+     * Reschedule an active timer to expire after a new duration, measured from
+     * now rather than from when it was started. If every slot from the one to
+     * which the new stop time hashes up to the timer's own slot is active,
+     * linear probing would place a new timer in the same slot, so only the
+     * stop time is updated. Otherwise the timer is moved to the slot a new
+     * timer would occupy, keeping its start time and tag, and its old index
+     * and handle become inactive.
+     * @param index The index of the timer.
+     * @param duration The new duration, in nanoseconds, of the timer, which
+     *                 must not be negative.
+     * @return The index of the timer, which differs from the given index if
+     * the timer was moved.
+     * @throws Inactive Thrown if the index references an inactive timer.
+     * @throws IllegalArgumentException Thrown if the duration is negative.
+     */
+    public int reschedule(int index, long duration) throws Inactive {
+        checkDuration(duration);
+        if (!isActive(index))
+            throw new Inactive();
+
+        // probe for the slot a new timer would occupy, treating this timer's
+        // own slot as available
+        long stopTime = clock.getAsLong() + duration;
+        actives[index >>> 6] &= ~(1L << index);
+        int moved = nextInactive(nanotimeToIndex(stopTime));
+        actives[moved >>> 6] |= 1L << moved;
+        stopTimes[moved] = stopTime;
+        durations[moved] = duration;
+        if (moved != index) {
+            startTimes[moved] = startTimes[index];
+            tags[moved] = tags[index];
+            nextGeneration(index);
+        }
+        return moved;
+    }
+
+    /**
+     * Reschedule an active timer to expire after the same duration with which
+     * it was most recently started or rescheduled, measured from now.
+     * @param index The index of the timer.
+     * @return The index of the timer, which differs from the given index if
+     * the timer was moved.
+     * @throws Inactive Thrown if the index references an inactive timer.
+     * @see #reschedule(int, long)
+     */
+    public int touch(int index) throws Inactive {
+        if (!isActive(index))
+            throw new Inactive();
+        return reschedule(index, durations[index]);
+    }
+
     /**
      * Stop an active timer, and return the time elapsed since it was
      * {@link #start(long) started}. Note that this elapsed time may exceed the
@@ -111,13 +295,63 @@ public final class NanotimeStopwatch {
      */
     public long stop(int index) throws Inactive {
         // prevent screwing up activeCount below if the timer isn't active
-        if (!actives[index])
+        if (!isActive(index))
             throw new Inactive();
 
         // deactivate the timer and return the elapsed time since start
-        actives[index] = false;
-        --activeCount;
-        return System.nanoTime() - startTimes[index];
+        deactivate(index);
+        return clock.getAsLong() - startTimes[index];
+    }
+
+    /**
+     * Stop an active timer identified by a handle, and return the time
+     * elapsed since it was {@link #start(long, long) started}.
+     * @param handle The handle of the timer.
+     * @return The time, in nanoseconds, elapsed since the timer was started.
+     * @throws Inactive Thrown if the timer has already been stopped or has
+     * expired, even if its index has since been reused by another timer.
+     * @see #stop(int)
+     */
+    public long stopHandle(long handle) throws Inactive {
+        int index = index(handle);
+        if (generations[index] != (int) (handle >>> 32))
+            throw new Inactive();
+        return stop(index);
+    }
+
+    /**
+     * Return the index of the timer identified by a handle.
+     * @param handle The handle of a timer.
+     * @return The index of the timer.
+     */
+    public static int index(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Return the handle of an active timer, such as one which has been moved
+     * by {@link #reschedule(int, long) reschedule}.
+     * @param index The index of the timer.
+     * @return The handle of the timer.
+     * @throws Inactive Thrown if the index references an inactive timer.
+     */
+    public long handle(int index) throws Inactive {
+        if (!isActive(index))
+            throw new Inactive();
+        return (long) generations[index] << 32 | index;
+    }
+
+    /**
+     * Return the tag of an active timer.
+     * @param index The index of the timer.
+     * @return The tag with which the timer was {@link #start(long, long)
+     * started}, or zero if it was started without one.
+     * @throws Inactive Thrown if the index references an inactive timer.
+     */
+    public long tag(int index) throws Inactive {
+        if (!isActive(index))
+            throw new Inactive();
+        return tags[index];
     }
 
     /**
@@ -132,21 +366,116 @@ public final class NanotimeStopwatch {
      * @return The number of expired timers.
      */
     public int tick(int[] expired) {
-        long now = System.nanoTime();
-        int length = 0;
-        for (int endCursor = (nanotimeToIndex(now) + 1) % capacity;
-             cursor != endCursor;
-             cursor = (cursor + 1) % capacity) {
-            if (stopTimes[cursor] - now < 0) {
-                actives[cursor] = false;
-                --activeCount;
-                expired[length++] = cursor;
+        return tick(expired, null, null);
+    }
+
+    /**
+     * Deactivate and return all timers that have expired since the previous
+     * tick, together with their tags. The indices of expired timers are copied
+     * to elements <code>[0, length)</code> of one buffer, and their tags to
+     * the same elements of the other.
+     * @param expired Buffer into which all expired timers will be copied.
+     * @param expiredTags Buffer into which the tags of all expired timers will
+     *                    be copied, or null if they aren't needed.
+     * @return The number of expired timers.
+     * @see #tick(int[])
+     */
+    public int tick(int[] expired, long[] expiredTags) {
+        return tick(expired, expiredTags, null);
+    }
+
+    /**
+     * Deactivate and return all timers that have expired since the previous
+     * tick, passing the tag of each, and the time elapsed since it was
+     * started, to a receiver. The indices of expired timers are copied to
+     * elements <code>[0, length)</code> of the buffer.
+     * @param expired Buffer into which all expired timers will be copied.
+     * @param expiry Receiver of each expired timer, in the order in which
+     *               they are copied.
+     * @return The number of expired timers.
+     * @see #tick(int[])
+     */
+    public int tick(int[] expired, Expiry expiry) {
+        return tick(expired, null, expiry);
+    }
+
+    private int tick(int[] expired, long[] expiredTags, Expiry expiry) {
+        long now = clock.getAsLong();
+        // scan up to and including the current slot, and leave the cursor
+        // there, since timers in it may not have expired yet
+        int endCursor = nanotimeToIndex(now);
+        int length;
+        if (cursor <= endCursor) {
+            length = expire(cursor, endCursor + 1, now, expired, expiredTags, expiry, 0);
+        } else {
+            length = expire(cursor, capacity, now, expired, expiredTags, expiry, 0);
+            length = expire(0, endCursor + 1, now, expired, expiredTags, expiry, length);
+        }
+        cursor = endCursor;
+        return length;
+    }
+
+    /**
+     * Expire the active timers in slots <code>[from, to)</code> whose stop
+     * times have passed, visiting only the set bits of the bitmap.
+     */
+    private int expire(
+            int from, int to, long now,
+            int[] expired, long[] expiredTags, Expiry expiry, int length) {
+        for (int word = from >>> 6; from < to; from = ++word << 6) {
+            long bits = actives[word] & (-1L << from);
+            if (to >>> 6 == word) bits &= ~(-1L << to);
+            for (; bits != 0; bits &= bits - 1) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (stopTimes[index] - now < 0) {
+                    deactivate(index);
+                    if (expiredTags != null) expiredTags[length] = tags[index];
+                    expired[length++] = index;
+                    if (expiry != null) expiry.expired(index, tags[index], now - startTimes[index]);
+                }
             }
         }
         return length;
     }
 
+    /**
+     * Return the first inactive slot at or after an index, wrapping around
+     * the end of the bitmap. There must be at least one inactive slot.
+     */
+    private int nextInactive(int index) {
+        int word = index >>> 6;
+        long bits = ~actives[word] & (-1L << index);
+        while (true) {
+            if (bits != 0) {
+                int found = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (found < capacity) return found;
+                // only unused bits past the capacity remain in the last word
+                word = actives.length - 1;
+            }
+            word = word + 1 == actives.length ? 0 : word + 1;
+            bits = ~actives[word];
+        }
+    }
+
+    private boolean isActive(int index) {
+        return (actives[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private void deactivate(int index) {
+        actives[index >>> 6] &= ~(1L << index);
+        nextGeneration(index);
+        --activeCount;
+    }
+
+    /**
+     * Advance the generation of a slot, skipping zero when it wraps around,
+     * so that no handle is ever zero.
+     */
+    private void nextGeneration(int index) {
+        if (++generations[index] == 0) generations[index] = 1;
+    }
+
     private int nanotimeToIndex(long nanotime) {
-        return (int) (nanotime / resolution % capacity);
+        return (int) Math.floorMod(Math.floorDiv(nanotime, resolution), (long) capacity);
     }
 }
@@ -0,0 +1,213 @@
+package acceptable.stopwatch;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A ticker thread for a {@link ConcurrentNanotimeStopwatch}, which calls
+ * {@link ConcurrentNanotimeStopwatch#tick(int[]) tick} at the stopwatch's
+ * resolution and delivers each batch of expired timers to a {@link Handler},
+ * either directly on the ticker thread or by handing it off to an
+ * {@link Executor}. Any number of threads may start and stop timers on the
+ * stopwatch while the scheduler is running.</p>
+ *
+ * <p>With drift compensation, ticks are scheduled at a fixed rate, so that the
+ * time spent ticking and handling expired timers doesn't accumulate; if the
+ * ticker falls behind by a whole tick or more, it skips the missed ticks
+ * rather than running them back to back, keeping the phase of the schedule,
+ * and counts them in {@link #skippedTicks()}. Without it, each tick is
+ * followed by a full resolution of sleep. Either way, the lag of each tick
+ * behind its scheduled time is published by {@link #tickLag()} and
+ * {@link #maxTickLag()}.</p>
+ *
+ * <p>Ticks are scheduled and their lag measured on the stopwatch's own
+ * {@link ConcurrentNanotimeStopwatch#nanoTime() clock}. Between ticks, the
+ * ticker parks for the remaining time on that clock, but for at most one
+ * resolution, so a simulated clock which advances independently of real time
+ * is followed to within about a resolution of real time.</p>
+ *
+ * <p>Interrupting the ticker thread stops it, as if by {@link #close()}.</p>
+ *
+ * <p>The ticker thread is created by a {@link ThreadFactory}, so that it may
+ * be a daemon thread, or a virtual thread where the platform supports
+ * them.</p>
+ */
+public final class StopwatchScheduler implements AutoCloseable {
+
+    /**
+     * A receiver of batches of expired timers.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * Handle a batch of expired timers.
+         * @param expired Buffer containing the indices of the expired timers.
+         *                When handled on the ticker thread, the buffer is
+         *                reused by the next tick, so it must not be retained.
+         * @param length The number of expired timers, in elements
+         *               <code>[0, length)</code> of the buffer.
+         */
+        void expired(int[] expired, int length);
+    }
+
+    private final ConcurrentNanotimeStopwatch stopwatch;
+    private final Handler handler;
+    private final Executor executor;
+    private final boolean compensateDrift;
+    private final Thread ticker;
+
+    private volatile boolean running = true;
+    private volatile long tickLag = 0;
+    private volatile long maxTickLag = 0;
+    private volatile long skippedTicks = 0;
+
+    /**
+     * Construct a scheduler which handles expired timers on a daemon ticker
+     * thread, with drift compensation.
+     * @param stopwatch The stopwatch to tick.
+     * @param handler The receiver of expired timers.
+     */
+    public StopwatchScheduler(ConcurrentNanotimeStopwatch stopwatch, Handler handler) {
+        this(stopwatch, handler, null, runnable -> {
+            Thread thread = new Thread(runnable, "stopwatch-ticker");
+            thread.setDaemon(true);
+            return thread;
+        }, true);
+    }
+
+    /**
+     * Construct a scheduler. The ticker thread isn't started until
+     * {@link #start()} is called.
+     * @param stopwatch The stopwatch to tick.
+     * @param handler The receiver of expired timers.
+     * @param executor The executor on which each batch of expired timers is
+     *                 handled, or null to handle them on the ticker thread.
+     * @param threadFactory The factory which creates the ticker thread.
+     * @param compensateDrift Whether to tick at a fixed rate, rather than
+     *                        with a fixed delay between ticks.
+     */
+    public StopwatchScheduler(
+            ConcurrentNanotimeStopwatch stopwatch, Handler handler,
+            Executor executor, ThreadFactory threadFactory,
+            boolean compensateDrift) {
+        this.stopwatch = stopwatch;
+        this.handler = handler;
+        this.executor = executor;
+        this.compensateDrift = compensateDrift;
+        this.ticker = threadFactory.newThread(this::run);
+    }
+
+    /**
+     * Start the ticker thread.
+     * @return This scheduler.
+     */
+    public StopwatchScheduler start() {
+        ticker.start();
+        return this;
+    }
+
+    /**
+     * Return the lag of the most recent tick behind its scheduled time.
+     * @return The lag, in nanoseconds, of the most recent tick.
+     */
+    public long tickLag() {
+        return tickLag;
+    }
+
+    /**
+     * Return the greatest lag of any tick behind its scheduled time.
+     * @return The lag, in nanoseconds, of the most lagging tick.
+     */
+    public long maxTickLag() {
+        return maxTickLag;
+    }
+
+    /**
+     * Return the number of ticks skipped, with drift compensation, because
+     * the ticker fell a whole tick or more behind.
+     * @return The number of skipped ticks.
+     */
+    public long skippedTicks() {
+        return skippedTicks;
+    }
+
+    /**
+     * Stop the ticker thread, and wait for it to finish its current tick.
+     * Batches already handed off to an executor may still be handled. If the
+     * calling thread is interrupted while waiting, it keeps waiting, and its
+     * interrupt status is restored afterward. Called from a handler on the
+     * ticker thread, this returns without waiting.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+        if (Thread.currentThread() == ticker) return;
+        boolean interrupted = false;
+        while (ticker.isAlive()) {
+            try {
+                ticker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long resolution = stopwatch.resolution;
+        int[] expired = new int[stopwatch.capacity];
+        long scheduled = stopwatch.nanoTime() + resolution;
+        while (running) {
+            long now;
+            while ((now = stopwatch.nanoTime()) - scheduled < 0 && running) {
+                if (Thread.interrupted()) {
+                    // parking returns immediately while interrupted, so stop
+                    // rather than spinning
+                    running = false;
+                    break;
+                }
+                LockSupport.parkNanos(this, Math.min(scheduled - now, resolution));
+            }
+            if (!running) break;
+
+            long lag = now - scheduled;
+            tickLag = lag;
+            if (lag > maxTickLag) maxTickLag = lag;
+            if (compensateDrift && lag >= resolution) {
+                // skip ticks that were missed entirely, keeping the phase
+                long skipped = lag / resolution;
+                scheduled += skipped * resolution;
+                skippedTicks += skipped;
+            }
+
+            int length = stopwatch.tick(expired);
+            if (length != 0) {
+                dispatch(expired, length);
+            }
+
+            scheduled = compensateDrift
+                    ? scheduled + resolution
+                    : stopwatch.nanoTime() + resolution;
+        }
+    }
+
+    private void dispatch(int[] expired, int length) {
+        try {
+            if (executor == null) {
+                handler.expired(expired, length);
+            } else {
+                int[] batch = Arrays.copyOf(expired, length);
+                executor.execute(() -> handler.expired(batch, length));
+            }
+        } catch (RuntimeException e) {
+            // keep ticking, but report the failure as the thread would
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package acceptable.stopwatch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ConcurrentNanotimeStopwatchTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void timersMustExpireAfterTheirDurations() {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(10, 100, now::get);
+        int first = stopwatch.start(15), second = stopwatch.start(25), third = stopwatch.start(35);
+        assertEquals(3, stopwatch.activeCount());
+        int[] expired = new int[stopwatch.capacity];
+
+        now.set(10);
+        assertEquals(0, stopwatch.tick(expired));
+        now.set(20);
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(first, expired[0]);
+        now.set(40);
+        assertEquals(2, stopwatch.tick(expired));
+        int[] actual = Arrays.copyOf(expired, 2);
+        Arrays.sort(actual);
+        int[] expected = {second, third};
+        Arrays.sort(expected);
+        assertArrayEquals(expected, actual);
+        assertEquals(0, stopwatch.activeCount());
+    }
+
+    @Test
+    public void stoppedTimersMustNotExpire() {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(10, 100, now::get);
+        int index = stopwatch.start(15);
+        now.set(12);
+        assertEquals(12, stopwatch.stop(index));
+        assertEquals(0, stopwatch.activeCount());
+        now.set(20);
+        assertEquals(0, stopwatch.tick(new int[stopwatch.capacity]));
+    }
+
+    @Test(expected = NanotimeStopwatch.Inactive.class)
+    public void expiredTimersMustNotBeStopped() {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(10, 100, now::get);
+        int index = stopwatch.start(15);
+        now.set(20);
+        assertEquals(1, stopwatch.tick(new int[stopwatch.capacity]));
+        stopwatch.stop(index);
+    }
+
+    @Test(expected = NanotimeStopwatch.Overflow.class)
+    public void startMustNotOverflow() {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(10, 2, now::get);
+        stopwatch.start(10);
+        stopwatch.start(20);
+        stopwatch.start(30);
+    }
+
+    @Test
+    public void staleHandlesMustNotStopReusedSlots() {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(10, 1, now::get);
+        long stale = stopwatch.startHandle(15);
+        assertNotEquals(0, stale);
+        now.set(20);
+        assertEquals(1, stopwatch.tick(new int[stopwatch.capacity]));
+
+        // the only slot is reused by a new timer, which the stale handle
+        // must not be able to stop, and neither may a zero handle
+        long handle = stopwatch.startHandle(15);
+        assertEquals(ConcurrentNanotimeStopwatch.index(stale), ConcurrentNanotimeStopwatch.index(handle));
+        for (long invalid : new long[] {stale, 0}) {
+            try {
+                stopwatch.stopHandle(invalid);
+                throw new AssertionError("stopped an invalid handle: " + invalid);
+            } catch (NanotimeStopwatch.Inactive expected) {
+                // expected
+            }
+        }
+        assertEquals(1, stopwatch.activeCount());
+        assertEquals(0, stopwatch.stopHandle(handle));
+        assertEquals(0, stopwatch.activeCount());
+    }
+
+    @Test
+    public void concurrentStartsMustBeStoppedOrExpiredExactlyOnce() throws InterruptedException {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(10, 256, now::get);
+        int threads = 4, iterations = 100000;
+        AtomicLong starts = new AtomicLong(), stops = new AtomicLong(), expirations = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean();
+
+        // the ticker advances the clock, so timers expire while others are
+        // being started and stopped
+        Thread ticker = new Thread(() -> {
+            int[] expired = new int[stopwatch.capacity];
+            while (!done.get()) {
+                now.addAndGet(5);
+                expirations.addAndGet(stopwatch.tick(expired));
+            }
+        });
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                long[] handles = new long[16];
+                for (int i = 0; i < iterations; ++i) {
+                    int slot = random.nextInt(handles.length);
+                    if (handles[slot] != 0) {
+                        try {
+                            stopwatch.stopHandle(handles[slot]);
+                            stops.incrementAndGet();
+                        } catch (NanotimeStopwatch.Inactive expired) {
+                            // expired first
+                        }
+                        handles[slot] = 0;
+                    } else {
+                        try {
+                            handles[slot] = stopwatch.startHandle(random.nextInt(200));
+                            starts.incrementAndGet();
+                        } catch (NanotimeStopwatch.Overflow full) {
+                            // try again later
+                        }
+                    }
+                }
+            });
+        }
+        ticker.start();
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        done.set(true);
+        ticker.join();
+
+        // drain the remaining timers
+        int[] expired = new int[stopwatch.capacity];
+        for (int i = 0; i < 100 && stopwatch.activeCount() != 0; ++i) {
+            now.addAndGet(1000);
+            expirations.addAndGet(stopwatch.tick(expired));
+        }
+        assertEquals(0, stopwatch.activeCount());
+        assertEquals(starts.get(), stops.get() + expirations.get());
+    }
+}
@@ -0,0 +1,211 @@
+package acceptable.stopwatch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class HierarchicalStopwatchTest {
+
+    private long now = 0;
+
+    @Test
+    public void timersMustExpireAtTheFirstTickAfterTheirDurations() {
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 100, () -> now);
+        int first = stopwatch.start(15);
+        int second = stopwatch.start(25);
+        int[] expired = new int[stopwatch.capacity];
+
+        now = 10;
+        assertEquals(0, stopwatch.tick(expired));
+        now = 15;
+        assertEquals(0, stopwatch.tick(expired));
+        now = 16;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(first, expired[0]);
+        now = 25;
+        assertEquals(0, stopwatch.tick(expired));
+        now = 26;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(second, expired[0]);
+        now = 100;
+        assertEquals(0, stopwatch.tick(expired));
+    }
+
+    @Test
+    public void stoppedTimersMustNotExpire() {
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 1, () -> now);
+        int index = stopwatch.start(150);
+        now = 50;
+        assertEquals(50, stopwatch.stop(index));
+        now = 200;
+        assertEquals(0, stopwatch.tick(new int[stopwatch.capacity]));
+
+        // the slot is free for a new timer
+        assertEquals(index, stopwatch.start(10));
+    }
+
+    @Test
+    public void longTimersMustCascadeThroughEachWheel() {
+        // one timer in each of the lowest four wheels, ticking once per
+        // nanosecond so that every bucket and every cascade is visited.
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(1, 4, () -> now);
+        long[] durations = {7, 5 * 64 + 7, 3 * 64 * 64 + 5 * 64 + 7, 64 * 64 * 64 + 2 * 64 * 64 + 3};
+        int[] indices = new int[durations.length];
+        for (int i = 0; i < durations.length; ++i) {
+            indices[i] = stopwatch.start(durations[i]);
+        }
+
+        int[] expired = new int[stopwatch.capacity];
+        int timer = 0;
+        for (now = 1; timer < durations.length; ++now) {
+            int length = stopwatch.tick(expired);
+            if (now == durations[timer] + 1) {
+                assertEquals("at " + now, 1, length);
+                assertEquals(indices[timer], expired[0]);
+                ++timer;
+            } else {
+                assertEquals("at " + now, 0, length);
+            }
+        }
+    }
+
+    @Test
+    public void delayedTicksMustExpireEveryBucketSkipped() {
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 100, () -> now);
+        long[] durations = {5, 100, 1000, 45000, 5000000};
+        int[] indices = new int[durations.length];
+        for (int i = 0; i < durations.length; ++i) {
+            indices[i] = stopwatch.start(durations[i]);
+        }
+        int[] expired = new int[stopwatch.capacity];
+
+        // a single late tick skips hundreds of buckets and a cascade.
+        now = 2000;
+        assertEquals(3, stopwatch.tick(expired));
+        int[] actual = Arrays.copyOf(expired, 3);
+        Arrays.sort(actual);
+        int[] expected = Arrays.copyOf(indices, 3);
+        Arrays.sort(expected);
+        assertArrayEquals(expected, actual);
+
+        now = 45000;
+        assertEquals(0, stopwatch.tick(expired));
+        now = 45001;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(indices[3], expired[0]);
+
+        // another late tick expires the rest.
+        now = 5000001;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(indices[4], expired[0]);
+        assertEquals(0, stopwatch.tick(expired));
+    }
+
+    @Test(timeout = 10000)
+    public void longPausesMustNotStepThroughEveryTick() {
+        // at a resolution of 1ns, these pauses span trillions of ticks
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(1, 100, () -> now);
+        long[] durations = {3, 1L << 20, 1L << 35, 1L << 50};
+        int[] indices = new int[durations.length];
+        for (int i = 0; i < durations.length; ++i) {
+            indices[i] = stopwatch.start(durations[i]);
+        }
+        int[] expired = new int[stopwatch.capacity];
+
+        now = (1L << 35) + 1;
+        assertEquals(3, stopwatch.tick(expired));
+        now = 1L << 50;
+        assertEquals(0, stopwatch.tick(expired));
+        now = (1L << 50) + 1;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(indices[3], expired[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void jumpingTicksMustExpireExactlyTheOverdueTimers() {
+        Random random = new Random(0);
+        now = 1000;
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(7, 64, () -> now);
+        long[] stopTimes = new long[stopwatch.capacity];
+        boolean[] active = new boolean[stopwatch.capacity];
+        int[] expired = new int[stopwatch.capacity];
+        for (int step = 0; step < 10000; ++step) {
+            // start a few timers of durations on every wheel's scale
+            for (int i = random.nextInt(4); i > 0; --i) {
+                try {
+                    long duration = random.nextLong() >>> (1 + random.nextInt(63));
+                    int index = stopwatch.start(duration);
+                    active[index] = true;
+                    stopTimes[index] = now + duration;
+                } catch (NanotimeStopwatch.Overflow e) {
+                    break;
+                }
+            }
+
+            // then tick after a pause of any scale
+            now += random.nextLong() >>> (20 + random.nextInt(44));
+            int length = stopwatch.tick(expired);
+            boolean[] wasExpired = new boolean[stopwatch.capacity];
+            for (int i = 0; i < length; ++i) {
+                wasExpired[expired[i]] = true;
+            }
+            for (int index = 0; index < stopwatch.capacity; ++index) {
+                if (active[index]) {
+                    assertEquals(stopTimes[index] - now < 0, wasExpired[index]);
+                    active[index] = !wasExpired[index];
+                } else {
+                    assertFalse(wasExpired[index]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hugeDurationsMustNotExpireImmediately() {
+        now = 1000;
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 2, () -> now);
+        now = 5000;
+        stopwatch.start(Long.MAX_VALUE);
+        stopwatch.start(Long.MAX_VALUE - 4500);
+        int[] expired = new int[stopwatch.capacity];
+        now = 5010;
+        assertEquals(0, stopwatch.tick(expired));
+        now = 1L << 62;
+        assertEquals(0, stopwatch.tick(expired));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDurationsMustBeRejected() {
+        new HierarchicalStopwatch(10, 2, () -> now).start(-1);
+    }
+
+    @Test(expected = NanotimeStopwatch.Overflow.class)
+    public void startMustNotOverflow() {
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 2, () -> now);
+        stopwatch.start(10);
+        stopwatch.start(20);
+        stopwatch.start(30);
+    }
+
+    @Test(expected = NanotimeStopwatch.Inactive.class)
+    public void stoppedTimersMustNotBeStoppedAgain() {
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 2, () -> now);
+        int index = stopwatch.start(10);
+        stopwatch.stop(index);
+        stopwatch.stop(index);
+    }
+
+    @Test(expected = NanotimeStopwatch.Inactive.class)
+    public void expiredTimersMustNotBeStopped() {
+        HierarchicalStopwatch stopwatch = new HierarchicalStopwatch(10, 2, () -> now);
+        int index = stopwatch.start(10);
+        now = 20;
+        assertEquals(1, stopwatch.tick(new int[stopwatch.capacity]));
+        stopwatch.stop(index);
+    }
+}
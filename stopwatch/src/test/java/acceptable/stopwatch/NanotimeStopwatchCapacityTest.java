@@ -0,0 +1,101 @@
+package acceptable.stopwatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link NanotimeStopwatch} with capacities that leave the last word
+ * of its bitmap partially used, or that fit in a single word.
+ */
+@RunWith(Parameterized.class)
+public class NanotimeStopwatchCapacityTest {
+
+    @Parameterized.Parameters(name = "capacity {0}")
+    public static Collection<Object[]> capacities() {
+        return Arrays.asList(new Object[][] {{1}, {63}, {65}, {130}});
+    }
+
+    private final int capacity;
+    private long now = 0;
+
+    public NanotimeStopwatchCapacityTest(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Test
+    public void probingMustWrapPastTheLastSlot() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, capacity, () -> now);
+
+        // every timer hashes to the last slot, so all but the first are
+        // placed by probing around the end of the bitmap
+        long stopTime = 10L * (capacity - 1) + 5;
+        int[] indices = new int[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            indices[i] = stopwatch.start(stopTime);
+        }
+        int[] expected = new int[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            expected[i] = (capacity - 1 + i) % capacity;
+        }
+        assertEquals(Arrays.toString(expected), Arrays.toString(indices));
+        try {
+            stopwatch.start(stopTime);
+            fail("started a timer in a full stopwatch");
+        } catch (NanotimeStopwatch.Overflow expectedOverflow) {
+            // expected
+        }
+
+        // ticking across the end of the wheel expires every timer once
+        int[] counts = new int[capacity];
+        int[] expired = new int[capacity];
+        for (now = 0; now <= stopTime + 10L * (capacity + 1); now += 10) {
+            int length = stopwatch.tick(expired);
+            for (int i = 0; i < length; ++i) {
+                assertTrue(now > stopTime);
+                counts[expired[i]]++;
+            }
+        }
+        int[] ones = new int[capacity];
+        Arrays.fill(ones, 1);
+        assertEquals(Arrays.toString(ones), Arrays.toString(counts));
+
+        // and every slot is free again
+        for (int i = 0; i < capacity; ++i) {
+            stopwatch.start(10);
+        }
+    }
+
+    @Test
+    public void timersMustExpireOnEveryLap() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, capacity, () -> now);
+        int[] expired = new int[capacity];
+        long[] tags = new long[capacity];
+        int started = 0, expirations = 0;
+
+        // start a timer on each tick for three laps of the wheel, tagged with
+        // its stop time, and check that each expires on the first tick after
+        for (int step = 0; step < 3 * capacity + 3; ++step) {
+            now = 10L * step;
+            int length = stopwatch.tick(expired, tags);
+            for (int i = 0; i < length; ++i) {
+                assertTrue(tags[i] < now);
+                assertTrue(now - tags[i] <= 10);
+            }
+            expirations += length;
+            if (step < 3 * capacity) {
+                long duration = 5 + 10 * (step % Math.min(capacity, 3));
+                stopwatch.start(duration, now + duration);
+                ++started;
+            }
+        }
+        assertEquals(started, expirations);
+    }
+}
@@ -0,0 +1,268 @@
+package acceptable.stopwatch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class NanotimeStopwatchTest {
+
+    private long now = 0;
+
+    @Test
+    public void timersMustExpireAfterTheirDurations() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        int[] indices = new int[3];
+        stopwatch.start(new long[] {15, 25, 35}, indices);
+        int[] expired = new int[stopwatch.capacity];
+
+        // nothing expires before its duration elapses
+        now = 10;
+        assertEquals(0, stopwatch.tick(expired));
+
+        // each timer expires at the first tick after its duration
+        now = 20;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(indices[0], expired[0]);
+        now = 40;
+        assertEquals(2, stopwatch.tick(expired));
+        int[] actual = Arrays.copyOf(expired, 2);
+        Arrays.sort(actual);
+        int[] expected = {indices[1], indices[2]};
+        Arrays.sort(expected);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void stoppedTimersMustNotExpire() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        int index = stopwatch.start(15);
+        now = 12;
+        assertEquals(12, stopwatch.stop(index));
+        now = 20;
+        assertEquals(0, stopwatch.tick(new int[stopwatch.capacity]));
+    }
+
+    @Test
+    public void tagsMustBeReturnedWithExpiredTimers() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        long handle = stopwatch.start(15, 42);
+        assertEquals(42, stopwatch.tag(NanotimeStopwatch.index(handle)));
+
+        now = 20;
+        int[] expired = new int[stopwatch.capacity];
+        long[] tags = new long[stopwatch.capacity];
+        assertEquals(1, stopwatch.tick(expired, tags));
+        assertEquals(NanotimeStopwatch.index(handle), expired[0]);
+        assertEquals(42, tags[0]);
+    }
+
+    @Test(expected = NanotimeStopwatch.Inactive.class)
+    public void staleHandlesMustNotStopReusedSlots() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 1, () -> now);
+        long stale = stopwatch.start(15, 1);
+        now = 20;
+        stopwatch.tick(new int[stopwatch.capacity]);
+
+        // the only slot is reused by a new timer, which the stale handle
+        // must not be able to stop
+        stopwatch.start(15, 2);
+        stopwatch.stopHandle(stale);
+    }
+
+    @Test
+    public void tagsMustRoundTripThroughTick() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        long[] handles = new long[10];
+        for (int i = 0; i < handles.length; ++i) {
+            handles[i] = stopwatch.start(15 + 10 * (i % 3), 1000 + i);
+        }
+        int untagged = stopwatch.start(15);
+        stopwatch.stopHandle(handles[4]);
+
+        now = 200;
+        int[] expired = new int[stopwatch.capacity];
+        long[] tags = new long[stopwatch.capacity];
+        int length = stopwatch.tick(expired, tags);
+        assertEquals(handles.length, length);
+        long[] expected = new long[length], actual = new long[length];
+        for (int i = 0; i < length; ++i) {
+            // each tag must be returned at the same position as its index
+            if (expired[i] == untagged) {
+                assertEquals(0, tags[i]);
+            } else {
+                int timer = (int) (tags[i] - 1000);
+                assertEquals(NanotimeStopwatch.index(handles[timer]), expired[i]);
+            }
+            actual[i] = tags[i];
+        }
+        for (int i = 0, j = 0; i < handles.length; ++i) {
+            if (i != 4) expected[j++] = 1000 + i;
+        }
+        Arrays.sort(actual);
+        Arrays.sort(expected);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void expiriesMustReportTagsAndElapsedTimes() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        long first = stopwatch.start(15, 7);
+        now = 5;
+        long second = stopwatch.start(15, 8);
+
+        now = 30;
+        int[] expired = new int[stopwatch.capacity];
+        long[] tags = new long[2], elapsed = new long[2];
+        int[] reported = {0};
+        int length = stopwatch.tick(expired, (index, tag, time) -> {
+            assertEquals(expired[reported[0]], index);
+            tags[reported[0]] = tag;
+            elapsed[reported[0]++] = time;
+        });
+        assertEquals(2, length);
+        assertEquals(2, reported[0]);
+        for (int i = 0; i < length; ++i) {
+            if (expired[i] == NanotimeStopwatch.index(first)) {
+                assertEquals(7, tags[i]);
+                assertEquals(30, elapsed[i]);
+            } else {
+                assertEquals(NanotimeStopwatch.index(second), expired[i]);
+                assertEquals(8, tags[i]);
+                assertEquals(25, elapsed[i]);
+            }
+        }
+    }
+
+    @Test
+    public void staleHandlesMustBeRejected() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 1, () -> now);
+        int[] expired = new int[stopwatch.capacity];
+
+        // a zero handle, such as an uninitialized field, is never valid,
+        // even though slot 0 is active
+        long handle = stopwatch.start(15, 1);
+        assertEquals(0, NanotimeStopwatch.index(handle));
+        assertInactive(stopwatch, 0);
+
+        // after a stop
+        stopwatch.stopHandle(handle);
+        assertInactive(stopwatch, handle);
+
+        // after an expiry and reuse
+        long expiring = stopwatch.start(15, 2);
+        now = 20;
+        assertEquals(1, stopwatch.tick(expired));
+        assertInactive(stopwatch, expiring);
+        long reused = stopwatch.start(15, 3);
+        assertInactive(stopwatch, handle);
+        assertInactive(stopwatch, expiring);
+        assertEquals(0, stopwatch.stopHandle(reused));
+    }
+
+    @Test
+    public void movedTimersMustInvalidateTheirHandles() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        long handle = stopwatch.start(15, 42);
+        int moved = stopwatch.reschedule(NanotimeStopwatch.index(handle), 500);
+        assertNotEquals(NanotimeStopwatch.index(handle), moved);
+        assertInactive(stopwatch, handle);
+        assertEquals(0, stopwatch.stopHandle(stopwatch.handle(moved)));
+    }
+
+    private static void assertInactive(NanotimeStopwatch stopwatch, long handle) {
+        try {
+            stopwatch.stopHandle(handle);
+            fail("stopped an invalid handle: " + handle);
+        } catch (NanotimeStopwatch.Inactive expected) {
+            // expected
+        }
+    }
+
+    @Test(expected = NanotimeStopwatch.Overflow.class)
+    public void batchesMustNotOverflow() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 2, () -> now);
+        stopwatch.start(new long[] {10, 20, 30}, new int[3]);
+    }
+
+    @Test
+    public void invalidDurationsMustNotStartAnyTimer() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 4, () -> now);
+        try {
+            stopwatch.start(new long[] {10, 20, 30}, new int[2]);
+            fail("started a batch with too short a buffer");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            stopwatch.start(new long[] {10, -20, 30}, new int[3]);
+            fail("started a batch with a negative duration");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        try {
+            stopwatch.start(-1);
+            fail("started a timer with a negative duration");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            stopwatch.start(-1, 42);
+            fail("started a tagged timer with a negative duration");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        // every slot is still free, and nothing expires
+        int[] indices = new int[4];
+        stopwatch.start(new long[] {100, 100, 100, 100}, indices);
+        now = 50;
+        assertEquals(0, stopwatch.tick(new int[stopwatch.capacity]));
+    }
+
+    @Test
+    public void touchedTimersMustExpireLater() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        int[] expired = new int[stopwatch.capacity];
+        int index = stopwatch.start(15);
+
+        // touching within the same slot keeps the timer in place
+        now = 2;
+        assertEquals(index, stopwatch.touch(index));
+        now = 16;
+        assertEquals(0, stopwatch.tick(expired));
+
+        // touching later moves the timer to the slot of its new stop time
+        index = stopwatch.touch(index);
+        now = 30;
+        assertEquals(0, stopwatch.tick(expired));
+        now = 32;
+        assertEquals(1, stopwatch.tick(expired));
+        assertEquals(index, expired[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeReschedulesMustBeRejected() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        stopwatch.reschedule(stopwatch.start(15), -1);
+    }
+
+    @Test
+    public void rescheduledTimersMustKeepTheirTags() {
+        NanotimeStopwatch stopwatch = new NanotimeStopwatch(10, 100, () -> now);
+        long handle = stopwatch.start(15, 42);
+        int index = stopwatch.reschedule(NanotimeStopwatch.index(handle), 55);
+        assertEquals(42, stopwatch.tag(index));
+
+        now = 60;
+        int[] expired = new int[stopwatch.capacity];
+        long[] tags = new long[stopwatch.capacity];
+        assertEquals(1, stopwatch.tick(expired, tags));
+        assertEquals(42, tags[0]);
+    }
+}
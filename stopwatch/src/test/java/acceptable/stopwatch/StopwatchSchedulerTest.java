@@ -0,0 +1,141 @@
+package acceptable.stopwatch;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StopwatchSchedulerTest {
+
+    @Test
+    public void expiredTimersMustBeHandled() throws InterruptedException {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(TimeUnit.MILLISECONDS.toNanos(1), 1000);
+        CountDownLatch latch = new CountDownLatch(100);
+        try (StopwatchScheduler scheduler = new StopwatchScheduler(
+                stopwatch, (expired, length) -> {
+                    for (int i = 0; i < length; ++i) latch.countDown();
+                }).start()) {
+            for (int i = 0; i < 100; ++i) {
+                stopwatch.start(TimeUnit.MILLISECONDS.toNanos(i % 10));
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(scheduler.maxTickLag() >= scheduler.tickLag());
+        }
+        assertEquals(0, stopwatch.activeCount());
+    }
+
+    @Test
+    public void expiredTimersMustBeHandedOffToExecutor() throws InterruptedException {
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(TimeUnit.MILLISECONDS.toNanos(1), 1000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch latch = new CountDownLatch(100);
+        AtomicReference<Thread> ticker = new AtomicReference<>();
+        AtomicBoolean handledOnTicker = new AtomicBoolean();
+        try (StopwatchScheduler scheduler = new StopwatchScheduler(
+                stopwatch,
+                (expired, length) -> {
+                    if (Thread.currentThread() == ticker.get()) handledOnTicker.set(true);
+                    for (int i = 0; i < length; ++i) latch.countDown();
+                },
+                executor,
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    ticker.set(thread);
+                    return thread;
+                },
+                false).start()) {
+            for (int i = 0; i < 100; ++i) {
+                stopwatch.start(TimeUnit.MILLISECONDS.toNanos(i % 10));
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            // ticks are only skipped with drift compensation
+            assertEquals(0, scheduler.skippedTicks());
+        } finally {
+            executor.shutdown();
+        }
+        assertNotNull(ticker.get());
+        assertFalse(handledOnTicker.get());
+    }
+
+    @Test
+    public void stalledHandlersMustBeReflectedInTickLag() throws InterruptedException {
+        long resolution = TimeUnit.MILLISECONDS.toNanos(1);
+        ConcurrentNanotimeStopwatch stopwatch = new ConcurrentNanotimeStopwatch(resolution, 100);
+        CountDownLatch stalled = new CountDownLatch(1), ticked = new CountDownLatch(3);
+        try (StopwatchScheduler scheduler = new StopwatchScheduler(
+                stopwatch, (expired, length) -> {
+                    if (stalled.getCount() != 0) {
+                        // block the ticker for several resolutions
+                        LockSupport.parkNanos(20 * resolution);
+                        stalled.countDown();
+                    } else {
+                        ticked.countDown();
+                    }
+                }).start()) {
+            stopwatch.start(0);
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; ++i) {
+                stopwatch.start(0);
+                Thread.sleep(5);
+            }
+            assertTrue(ticked.await(10, TimeUnit.SECONDS));
+            assertTrue(scheduler.maxTickLag() >= 10 * resolution);
+            assertTrue(scheduler.skippedTicks() >= 10);
+        }
+    }
+
+    @Test
+    public void ticksMustFollowTheStopwatchClock() throws InterruptedException {
+        long resolution = TimeUnit.MILLISECONDS.toNanos(1);
+        AtomicLong now = new AtomicLong();
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(resolution, 100, now::get);
+        CountDownLatch latch = new CountDownLatch(1);
+        try (StopwatchScheduler scheduler = new StopwatchScheduler(
+                stopwatch, (expired, length) -> latch.countDown()).start()) {
+            stopwatch.start(10 * resolution);
+
+            // real time passes, but the stopwatch's clock doesn't
+            assertFalse(latch.await(50, TimeUnit.MILLISECONDS));
+            assertEquals(0, scheduler.maxTickLag());
+
+            // the clock jumps forward, and the ticker follows it
+            now.set(50 * resolution);
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(scheduler.maxTickLag() >= 40 * resolution);
+        }
+    }
+
+    @Test
+    public void interruptedTickersMustStop() throws InterruptedException {
+        AtomicReference<Thread> ticker = new AtomicReference<>();
+        ConcurrentNanotimeStopwatch stopwatch =
+                new ConcurrentNanotimeStopwatch(TimeUnit.SECONDS.toNanos(1), 100);
+        try (StopwatchScheduler scheduler = new StopwatchScheduler(
+                stopwatch, (expired, length) -> {}, null,
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    ticker.set(thread);
+                    return thread;
+                },
+                true).start()) {
+            ticker.get().interrupt();
+            ticker.get().join(TimeUnit.SECONDS.toMillis(10));
+            assertFalse(ticker.get().isAlive());
+            assertEquals(0, scheduler.tickLag());
+        }
+    }
+}